@@ -0,0 +1,219 @@
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Audit trail of the changes the archive runs actually made, one compact NDJSON record per committed move,
+ * delete, cleanup delete or folder creation. Records are handed over through a bounded queue and written by a
+ * single background thread to a rolling file, so the runs never wait for the disk; when the queue is full a
+ * record is dropped and counted instead of blocking the run. The callers learn about a dropped record from
+ * the return value: {@link ArchiveBatch} logs the first drop of a run and publishes the drops of its runs
+ * through {@link ArchiveMetrics}. Skips are not journaled, see {@link ArchiveBatch#skipped}.
+ */
+@Component(service = ArchiveAuditJournal.class)
+@Designate(ocd = ArchiveAuditJournal.Config.class)
+public class ArchiveAuditJournal {
+
+    @ObjectClassDefinition(name = "Archive Audit Journal")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Directory",
+                description = "Directory of the journal files, relative to the working directory of the instance")
+        String directory() default "logs/archive-audit";
+
+        @AttributeDefinition(
+                name = "Maximum file size",
+                description = "Size in megabytes after which the journal file is rolled over")
+        int max_file_size_mb() default 20;
+
+        @AttributeDefinition(
+                name = "Maximum files",
+                description = "Number of rolled over journal files kept next to the current one")
+        int max_files() default 10;
+
+        @AttributeDefinition(
+                name = "Buffer size",
+                description = "Number of records buffered for the writer; records beyond it are dropped")
+        int buffer_size() default 8192;
+    }
+
+    static final String FILE_NAME = "archive-audit";
+    static final String FILE_EXTENSION = ".ndjson";
+
+    /** One line of the journal. */
+    static class Record {
+        final long ts;
+        final String op;
+        final String path;
+        final String dest;
+        final String scope;
+
+        Record(final String op, final String path, final String dest, final String scope) {
+            this.ts = System.currentTimeMillis();
+            this.op = op;
+            this.path = path;
+            this.dest = dest;
+            this.scope = scope;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveAuditJournal.class);
+
+    private static final int DRAIN_LIMIT = 512;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private BlockingQueue<Record> queue;
+    private Path directory;
+    private long maxFileBytes;
+    private int maxFiles;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    @Activate
+    protected void activate(final Config config) {
+        queue = new ArrayBlockingQueue<>(Math.max(1, config.buffer_size()));
+        directory = Paths.get(config.directory());
+        maxFileBytes = Math.max(1, config.max_file_size_mb()) * 1024L * 1024L;
+        maxFiles = Math.max(0, config.max_files());
+        running = true;
+        writerThread = new Thread(this::writeLoop, "archive-audit-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean move(final String srcAbsPath, final String destAbsPath, final String scope) {
+        return append(new Record(ArchivePlanWriter.OP_MOVE, srcAbsPath, destAbsPath, scope));
+    }
+
+    public boolean delete(final String path) {
+        return append(new Record(ArchivePlanWriter.OP_DELETE, path, null, null));
+    }
+
+    /**
+     * Records a path queued for {@link ArchiveCleanupWorker}.
+     */
+    public boolean cleanup(final String path) {
+        return append(new Record(ArchivePlanWriter.OP_CLEANUP, path, null, null));
+    }
+
+    public boolean create(final String path) {
+        return append(new Record(ArchivePlanWriter.OP_CREATE, path, null, null));
+    }
+
+    /**
+     * Hands a record to the writer without waiting; drops it if the buffer is full.
+     *
+     * @return false if the record was dropped
+     */
+    boolean append(final Record record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records dropped since activation, because the buffer was full or the file could not
+     *         be written
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+        final List<Record> records = new ArrayList<>(DRAIN_LIMIT);
+        while (running || !queue.isEmpty()) {
+            try {
+                final Record first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                records.add(first);
+            } catch (InterruptedException e) {
+                // deactivated, write what is left and stop
+                running = false;
+            }
+            queue.drainTo(records, DRAIN_LIMIT - records.size());
+            if (!records.isEmpty()) {
+                write(records);
+                records.clear();
+            }
+        }
+        final long lost = dropped.get();
+        if (lost > 0) {
+            LOG.warn("Archive audit journal dropped {} records because its buffer was full", lost);
+        }
+    }
+
+    private void write(final List<Record> records) {
+        try {
+            Files.createDirectories(directory);
+            final Path file = directory.resolve(FILE_NAME + FILE_EXTENSION);
+            if (Files.exists(file) && Files.size(file) >= maxFileBytes) {
+                roll(file);
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (final Record record : records) {
+                    writer.write(ArchivePlanWriter.GSON.toJson(record));
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            dropped.addAndGet(records.size());
+            LOG.error("Failed to write {} archive audit records: {}", records.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Shifts the rolled over files by one, dropping the oldest, and rolls the current file over.
+     */
+    private void roll(final Path file) throws IOException {
+        if (maxFiles == 0) {
+            Files.delete(file);
+            return;
+        }
+        Files.deleteIfExists(directory.resolve(FILE_NAME + "." + maxFiles + FILE_EXTENSION));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final Path rolled = directory.resolve(FILE_NAME + "." + i + FILE_EXTENSION);
+            if (Files.exists(rolled)) {
+                Files.move(rolled, directory.resolve(FILE_NAME + "." + (i + 1) + FILE_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, directory.resolve(FILE_NAME + ".1" + FILE_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
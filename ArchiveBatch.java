@@ -0,0 +1,541 @@
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Groups the moves of an archive run into batches and saves the session once a batch is full,
+ * so the transient space and every Oak commit stay bounded by the batch size instead of
+ * growing with the whole run. Whole folders are moved in the workspace and committed one by one. An optional
+ * {@link ArchiveMemoryGuard} also bounds a batch by the estimated number of nodes its changes touch; a page or
+ * node whose subtree alone is above the guard's abort threshold is left in place and reported as oversized. With an
+ * {@link ArchiveAuditJournal} the changes of a batch are journaled once the batch is committed.
+ * <p>
+ * All changes of a run (moves, deletes, folder creation) go through the batch. When the batch is created
+ * with an {@link ArchivePlanWriter} it only records those changes in the plan and leaves the session untouched.
+ */
+public class ArchiveBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveBatch.class);
+
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Where folders replaced by a folder move are kept until {@link ArchiveCleanupWorker} deletes them. */
+    static final String REPLACED_PATH = ArchiveCursor.VAR_ROOT + "/replaced";
+
+    private final Session session;
+    private final int batchSize;
+    private final ArchivePlanWriter plan;
+    private final ArchiveThrottle throttle;
+    private final ArchiveMemoryGuard guard;
+    private final ArchiveAuditJournal journal;
+    private final List<ArchiveAuditJournal.Record> pendingRecords = new ArrayList<>();
+    private final List<String> oversized = new ArrayList<>();
+    private final int[] skipped = new int[ArchiveRule.Decision.values().length];
+    private final ArchiveNameIndex names = new ArchiveNameIndex();
+    private final long startNanos = System.nanoTime();
+
+    private int pendingMoves;
+    private int pendingDeletes;
+    private long pendingNodes;
+    private int batchesCommitted;
+    private int batchesFailed;
+    private int movesCommitted;
+    private int deletesCommitted;
+    private int folderMovesCommitted;
+    private int journalDropped;
+    private long moveNanos;
+    private long saveNanos;
+
+    /**
+     * @param session    the JCR session the moves are performed in
+     * @param batchSize  the number of moves after which the session is saved
+     */
+    public ArchiveBatch(final Session session, final int batchSize) {
+        this(session, batchSize, null);
+    }
+
+    /**
+     * @param session    the JCR session the moves are performed in
+     * @param batchSize  the number of moves after which the session is saved
+     * @param plan       if not null, changes are recorded in this plan instead of being applied
+     */
+    public ArchiveBatch(final Session session, final int batchSize, final ArchivePlanWriter plan) {
+        this(session, batchSize, plan, null, null, null);
+    }
+
+    /**
+     * @param session   the JCR session the moves are performed in
+     * @param throttle  decides the batch size and the pause after each save from the observed save latency
+     */
+    public ArchiveBatch(final Session session, final ArchiveThrottle throttle) {
+        this(session, throttle.getBatchSize(), null, throttle, null, null);
+    }
+
+    /**
+     * @param session    the JCR session the moves are performed in
+     * @param batchSize  the number of moves after which the session is saved, unless a throttle is given
+     * @param throttle   if not null, decides the batch size and the pause after each save
+     * @param guard      if not null, saves the batch early when the pending changes grow too large and leaves
+     *                   oversized subtrees in place
+     * @param journal    if not null, receives the committed changes
+     */
+    public ArchiveBatch(final Session session, final int batchSize, final ArchiveThrottle throttle, final ArchiveMemoryGuard guard,
+                        final ArchiveAuditJournal journal) {
+        this(session, throttle != null ? throttle.getBatchSize() : batchSize, null, throttle, guard, journal);
+    }
+
+    private ArchiveBatch(final Session session, final int batchSize, final ArchivePlanWriter plan, final ArchiveThrottle throttle,
+                         final ArchiveMemoryGuard guard, final ArchiveAuditJournal journal) {
+        this.session = session;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.plan = plan;
+        this.throttle = throttle;
+        this.guard = guard;
+        this.journal = journal;
+    }
+
+    public boolean isPlanning() {
+        return plan != null;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Answers whether a node exists from the listed child names of its parent, including the changes this
+     * batch made so far (or, when planning, would have made).
+     */
+    public boolean exists(final ResourceResolver resolver, final String parentPath, final String name) {
+        return names.exists(resolver, parentPath, name);
+    }
+
+    /**
+     * Moves a page in the session and commits the batch once it reaches the batch size.
+     *
+     * @return false if the page was left in place because its subtree is too large to stage, see {@link #getOversized()}
+     */
+    public boolean move(final String srcAbsPath, final String destAbsPath) throws RepositoryException {
+        return move(srcAbsPath, destAbsPath, ArchivePlanWriter.SCOPE_PAGE);
+    }
+
+    /**
+     * Moves a whole folder with {@code Workspace.move}, which commits the move right away instead of staging
+     * the subtree in the session's transient space, so a folder with many descendants does not cost heap
+     * proportional to its size. The pending batch is saved first: the move must see the target folders made
+     * for it, and it would not be rolled back together with the batch anyway.
+     * <p>
+     * A folder already at the destination is replaced. Since the move cannot be rolled back together with a
+     * delete, the existing folder is moved aside below {@link #REPLACED_PATH} instead of being deleted, moved
+     * back if the move fails, and only queued for deletion by {@link ArchiveCleanupWorker} once the move is done.
+     *
+     * @return false if the move failed and the folder was left in place; the failure is counted as a failed batch
+     */
+    public boolean moveFolder(final ResourceResolver resolver, final String srcAbsPath, final String destAbsPath) throws RepositoryException {
+        if (plan != null) {
+            return move(srcAbsPath, destAbsPath, ArchivePlanWriter.SCOPE_FOLDER);
+        }
+        save();
+        final long start = System.nanoTime();
+        String replacedPath = null;
+        try {
+            if (session.nodeExists(destAbsPath)) {
+                replacedPath = moveAside(destAbsPath);
+            }
+            session.getWorkspace().move(srcAbsPath, destAbsPath);
+            names.moved(srcAbsPath, destAbsPath);
+            movesCommitted++;
+            folderMovesCommitted++;
+            if (journal != null) {
+                toJournal(new ArchiveAuditJournal.Record(ArchivePlanWriter.OP_MOVE, srcAbsPath, destAbsPath,
+                        ArchivePlanWriter.SCOPE_FOLDER));
+            }
+            LOG.debug("Moved folder {} to {} in the workspace", srcAbsPath, destAbsPath);
+        } catch (RepositoryException e) {
+            batchesFailed++;
+            LOG.error("Failed to move folder {} to {}, leaving it in place: {}", srcAbsPath, destAbsPath, e.getMessage());
+            if (replacedPath != null) {
+                restore(replacedPath, destAbsPath);
+            }
+            return false;
+        } finally {
+            // Workspace.move commits on its own, so it counts as a save for the throttle
+            final long elapsed = System.nanoTime() - start;
+            moveNanos += elapsed;
+            saveNanos += elapsed;
+            if (throttle != null) {
+                throttle.saved(elapsed);
+                throttle.pause();
+            }
+        }
+        if (replacedPath != null) {
+            try {
+                deleteLater(resolver, replacedPath);
+            } catch (PersistenceException e) {
+                LOG.error("Failed to queue replaced folder {} for deletion, it stays in place: {}", replacedPath, e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the path below {@link #REPLACED_PATH} the node at the given path was moved to
+     */
+    private String moveAside(final String path) throws RepositoryException {
+        if (!session.nodeExists(REPLACED_PATH)) {
+            JcrUtils.getOrCreateByPath(REPLACED_PATH, "sling:Folder", session);
+            session.save();
+        }
+        final String replacedPath = REPLACED_PATH + "/" + UUID.randomUUID();
+        session.getWorkspace().move(path, replacedPath);
+        return replacedPath;
+    }
+
+    private void restore(final String replacedPath, final String path) {
+        try {
+            session.getWorkspace().move(replacedPath, path);
+        } catch (RepositoryException e) {
+            LOG.error("Failed to move the replaced folder back to {}, it is kept at {}: {}", path, replacedPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes a node in the session, under the same memory guard as a move.
+     *
+     * @return false if the node was left in place because its subtree is too large to stage, see {@link #getOversized()}
+     */
+    public boolean delete(final ResourceResolver resolver, final Resource resource) throws PersistenceException {
+        if (plan != null) {
+            names.removed(resource.getPath());
+            try {
+                plan.delete(resource.getPath());
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to write plan", e);
+            }
+            return true;
+        }
+        try {
+            if (!staged(resource.getPath())) {
+                return false;
+            }
+        } catch (RepositoryException e) {
+            throw new PersistenceException("Failed to stage delete of " + resource.getPath(), e);
+        }
+        names.removed(resource.getPath());
+        resolver.delete(resource);
+        pendingDeletes++;
+        journaled(ArchivePlanWriter.OP_DELETE, resource.getPath(), null, null);
+        return true;
+    }
+
+    /**
+     * Queues a path for deletion by {@link ArchiveCleanupWorker} instead of deleting it in this session. The
+     * queue entry is saved with the batch, so only paths of committed moves are ever deleted.
+     */
+    public void deleteLater(final ResourceResolver resolver, final String path) throws PersistenceException {
+        names.removed(path);
+        if (plan != null) {
+            try {
+                plan.cleanup(path);
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to write plan", e);
+            }
+            return;
+        }
+        new ArchiveCleanupQueue(resolver).enqueue(path);
+        pendingNodes++;
+        journaled(ArchivePlanWriter.OP_CLEANUP, path, null, null);
+    }
+
+    /**
+     * Creates a child folder below the given parent path.
+     */
+    public void create(final ResourceResolver resolver, final String parentPath, final String name) throws PersistenceException {
+        names.added(parentPath + "/" + name);
+        if (plan != null) {
+            try {
+                plan.create(parentPath + "/" + name);
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to write plan", e);
+            }
+            return;
+        }
+        resolver.create(resolver.getResource(parentPath), name, null);
+        pendingNodes++;
+        journaled(ArchivePlanWriter.OP_CREATE, parentPath + "/" + name, null, null);
+    }
+
+    /**
+     * Creates the folder at the given path, including missing ancestors, unless it already exists.
+     */
+    public void ensureFolder(final ResourceResolver resolver, final String path) throws PersistenceException {
+        if (resolver.getResource(path) != null) {
+            return;
+        }
+        names.created(path);
+        if (plan != null) {
+            try {
+                plan.create(path);
+            } catch (IOException e) {
+                throw new PersistenceException("Failed to write plan", e);
+            }
+            return;
+        }
+        ResourceUtil.getOrCreateResource(resolver, path, (String) null, null, false);
+        pendingNodes++;
+        journaled(ArchivePlanWriter.OP_CREATE, path, null, null);
+    }
+
+    private boolean move(final String srcAbsPath, final String destAbsPath, final String scope) throws RepositoryException {
+        if (plan != null) {
+            names.moved(srcAbsPath, destAbsPath);
+            try {
+                plan.move(srcAbsPath, destAbsPath, scope);
+            } catch (IOException e) {
+                throw new RepositoryException("Failed to write plan", e);
+            }
+            return true;
+        }
+        if (!staged(srcAbsPath)) {
+            return false;
+        }
+        names.moved(srcAbsPath, destAbsPath);
+        final long start = System.nanoTime();
+        session.move(srcAbsPath, destAbsPath);
+        moveNanos += System.nanoTime() - start;
+        pendingMoves++;
+        journaled(ArchivePlanWriter.OP_MOVE, srcAbsPath, destAbsPath, scope);
+        if (pendingMoves >= currentBatchSize()) {
+            commit();
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a change for the journal until the batch holding it is committed.
+     */
+    private void journaled(final String op, final String path, final String dest, final String scope) {
+        if (journal != null) {
+            pendingRecords.add(new ArchiveAuditJournal.Record(op, path, dest, scope));
+        }
+    }
+
+    /**
+     * Hands a committed change to the journal, and warns on the first record of the run the journal drops.
+     */
+    private void toJournal(final ArchiveAuditJournal.Record record) {
+        if (!journal.append(record) && journalDropped++ == 0) {
+            LOG.warn("Audit journal buffer is full, dropping records of this run; see the journal.dropped metric");
+        }
+    }
+
+    /**
+     * Counts a node the run left in place, for the summary of the run.
+     *
+     * @return the number of nodes skipped for the same reason so far
+     */
+    public int skipped(final ArchiveRule.Decision decision) {
+        return ++skipped[decision.ordinal()];
+    }
+
+    /**
+     * @return the number of nodes skipped for any reason
+     */
+    public int getSkipped() {
+        int total = 0;
+        for (final int count : skipped) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Adds the nodes of a subtree that is about to be changed in the session to the estimate of the guard. The
+     * pending batch is saved first when the change would take it past the flush or the abort threshold. A subtree
+     * that is above the abort threshold on its own is reported as oversized instead, so it does not fail every
+     * run that reaches it.
+     *
+     * @return false if the change must not be made
+     */
+    private boolean staged(final String path) throws RepositoryException {
+        if (guard == null) {
+            return true;
+        }
+        // counting as far as the room left in the batch is enough for the usual small subtree
+        final long room = guard.room(pendingNodes);
+        long nodes = guard.countNodes(session, path, room);
+        if (guard.shouldFlush(pendingNodes + nodes)) {
+            if (pendingNodes > 0) {
+                LOG.debug("Saving batch of {} moves early, {} pending nodes", pendingMoves, pendingNodes);
+                commit();
+            }
+            if (nodes > room) {
+                // only a subtree that does not fit is counted up to the abort threshold
+                nodes = guard.countNodes(session, path);
+            }
+        }
+        if (guard.mustAbort(nodes)) {
+            oversized.add(path);
+            LOG.warn("Leaving {} in place, its subtree has more than the allowed number of nodes ({})", path, guard);
+            return false;
+        }
+        pendingNodes += nodes;
+        return true;
+    }
+
+    /**
+     * @return the paths left in place because their subtree is above the abort threshold of the memory guard
+     */
+    public List<String> getOversized() {
+        return oversized;
+    }
+
+    /**
+     * Saves the pending changes of the current batch and pauses as the throttle asks. A failed save only
+     * discards that batch; the batches committed before it stay in the repository.
+     */
+    public void commit() throws RepositoryException {
+        if (save() && throttle != null) {
+            throttle.pause();
+        }
+    }
+
+    /**
+     * Saves the pending changes of the current batch without pausing.
+     *
+     * @return false if there was nothing to save
+     */
+    private boolean save() throws RepositoryException {
+        if (plan != null) {
+            return false;
+        }
+        if (pendingMoves == 0 && !session.hasPendingChanges()) {
+            return false;
+        }
+        final long start = System.nanoTime();
+        try {
+            session.save();
+            batchesCommitted++;
+            movesCommitted += pendingMoves;
+            deletesCommitted += pendingDeletes;
+            for (final ArchiveAuditJournal.Record record : pendingRecords) {
+                toJournal(record);
+            }
+            LOG.debug("Committed batch {} with {} moves", batchesCommitted, pendingMoves);
+        } catch (RepositoryException e) {
+            batchesFailed++;
+            LOG.error("Failed to commit batch of {} moves, discarding it: {}", pendingMoves, e.getMessage());
+            session.refresh(false);
+            names.clear();
+        } finally {
+            saveNanos += System.nanoTime() - start;
+            pendingMoves = 0;
+            pendingDeletes = 0;
+            pendingNodes = 0;
+            pendingRecords.clear();
+        }
+        if (throttle != null) {
+            throttle.saved(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private int currentBatchSize() {
+        return throttle != null ? throttle.getBatchSize() : batchSize;
+    }
+
+    public int getBatchesCommitted() {
+        return batchesCommitted;
+    }
+
+    public int getBatchesFailed() {
+        return batchesFailed;
+    }
+
+    public int getMovesCommitted() {
+        return movesCommitted;
+    }
+
+    /**
+     * @return the number of committed deletes in this session, i.e. of conflicting nodes below the target
+     */
+    public int getDeletesCommitted() {
+        return deletesCommitted;
+    }
+
+    /**
+     * @return the number of committed changes the audit journal dropped because its buffer was full
+     */
+    public int getJournalDropped() {
+        return journalDropped;
+    }
+
+    /**
+     * @return the number of moves made so far, including those not committed yet
+     */
+    public int getMovesPerformed() {
+        return movesCommitted + pendingMoves;
+    }
+
+    /**
+     * @return the number of committed moves that moved a whole folder, included in {@link #getMovesCommitted()}
+     */
+    public int getFolderMovesCommitted() {
+        return folderMovesCommitted;
+    }
+
+    /**
+     * @return the time spent in {@code session.move} and {@code Workspace.move}
+     */
+    public long getMoveNanos() {
+        return moveNanos;
+    }
+
+    /**
+     * @return the time spent in {@code session.save} and {@code Workspace.move}, including failed saves
+     */
+    public long getSaveNanos() {
+        return saveNanos;
+    }
+
+    /**
+     * @return the time since the batch was created
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public String summary() {
+        if (plan != null) {
+            return plan.getSteps() + " steps planned";
+        }
+        return batchesCommitted + " batches committed (" + movesCommitted + " moves), "
+                + batchesFailed + " batches failed, "
+                + (throttle != null ? throttle.toString() : "batch size " + batchSize)
+                + (guard != null ? ", " + guard : "")
+                + (oversized.isEmpty() ? "" : ", " + oversized.size() + " oversized subtrees left in place")
+                + (journalDropped == 0 ? "" : ", " + journalDropped + " journal records dropped")
+                + skippedSummary();
+    }
+
+    private String skippedSummary() {
+        final StringBuilder summary = new StringBuilder();
+        for (final ArchiveRule.Decision decision : ArchiveRule.Decision.values()) {
+            if (skipped[decision.ordinal()] > 0) {
+                summary.append(summary.length() == 0 ? ", skipped " : " ").append(decision).append('=').append(skipped[decision.ordinal()]);
+            }
+        }
+        return summary.toString();
+    }
+}
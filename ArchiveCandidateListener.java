@@ -0,0 +1,70 @@
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records pages added or changed under the source root of {@link MoveContentJob} in the
+ * {@link ArchiveCandidateStore}, so the job's incremental mode only evaluates those pages.
+ */
+@Component(
+        service = ResourceChangeListener.class,
+        property = {
+                ResourceChangeListener.PATHS + "=" + MoveContentJob.BASE_PATH,
+                ResourceChangeListener.CHANGES + "=ADDED",
+                ResourceChangeListener.CHANGES + "=CHANGED"
+        }
+)
+public class ArchiveCandidateListener implements ResourceChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveCandidateListener.class);
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> pagePaths = new LinkedHashSet<>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            int contentIndex = path.indexOf("/jcr:content");
+            pagePaths.add(contentIndex > 0 ? path.substring(0, contentIndex) : path);
+        }
+
+        Map<String, Object> param = new HashMap<>();
+        param.put(ResourceResolverFactory.SUBSERVICE, "dataMoverServiceUser");
+
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
+            ArchiveCandidateStore store = new ArchiveCandidateStore(resolver, MoveContentJob.CANDIDATES_PATH);
+            for (String pagePath : pagePaths) {
+                Resource contentResource = resolver.getResource(pagePath + "/jcr:content");
+                if (contentResource == null) {
+                    continue;
+                }
+                Calendar newsPublishDate = contentResource.getValueMap().get("newsPublishDate", Calendar.class);
+                if (newsPublishDate != null) {
+                    store.add(pagePath, newsPublishDate);
+                }
+            }
+            resolver.commit();
+        } catch (LoginException e) {
+            LOG.error("Error getting resource resolver", e);
+        } catch (PersistenceException e) {
+            LOG.error("Failed to record archive candidates: {}", e.getMessage(), e);
+        }
+    }
+}
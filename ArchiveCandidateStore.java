@@ -0,0 +1,79 @@
+import org.apache.jackrabbit.util.Text;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persisted set of pages that may become eligible for archiving, keyed by page path and holding the
+ * page's publish date. Filled by {@link ArchiveCandidateListener} as pages are added or changed, so
+ * the job only needs to look at these pages instead of rescanning the whole tree.
+ * <p>
+ * Changes are made in the resolver's transient space; the caller commits them.
+ */
+public class ArchiveCandidateStore {
+
+    private static final String PN_PATH = "path";
+    private static final String PN_PUBLISH_DATE = "publishDate";
+
+    private final ResourceResolver resolver;
+    private final String rootPath;
+
+    public ArchiveCandidateStore(final ResourceResolver resolver, final String rootPath) {
+        this.resolver = resolver;
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * Adds a page to the set, or updates its publish date if it is already present.
+     */
+    public void add(final String pagePath, final Calendar publishDate) throws PersistenceException {
+        final Resource root = ResourceUtil.getOrCreateResource(resolver, rootPath,
+                Collections.singletonMap("jcr:primaryType", (Object) "sling:Folder"), "sling:Folder", false);
+        final String name = Text.escapeIllegalJcrChars(pagePath);
+        Resource candidate = root.getChild(name);
+        if (candidate == null) {
+            candidate = resolver.create(root, name, Collections.singletonMap("jcr:primaryType", (Object) "nt:unstructured"));
+        }
+        final ModifiableValueMap properties = candidate.adaptTo(ModifiableValueMap.class);
+        if (properties == null) {
+            throw new PersistenceException("Candidate at " + candidate.getPath() + " is not modifiable");
+        }
+        properties.put(PN_PATH, pagePath);
+        properties.put(PN_PUBLISH_DATE, publishDate);
+    }
+
+    public void remove(final String pagePath) throws PersistenceException {
+        final Resource candidate = resolver.getResource(rootPath + "/" + Text.escapeIllegalJcrChars(pagePath));
+        if (candidate != null) {
+            resolver.delete(candidate);
+        }
+    }
+
+    /**
+     * @return the candidate page paths in path order, so parents come before their descendants
+     */
+    public Map<String, Calendar> list() {
+        final Map<String, Calendar> candidates = new TreeMap<>();
+        final Resource root = resolver.getResource(rootPath);
+        if (root == null) {
+            return candidates;
+        }
+        for (final Resource candidate : root.getChildren()) {
+            final ValueMap properties = candidate.getValueMap();
+            final String pagePath = properties.get(PN_PATH, String.class);
+            final Calendar publishDate = properties.get(PN_PUBLISH_DATE, Calendar.class);
+            if (pagePath != null && publishDate != null) {
+                candidates.put(pagePath, publishDate);
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,127 @@
+import org.apache.jackrabbit.util.Text;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persisted queue of paths to delete outside the archive run, keyed by path and holding the time the path was
+ * queued. The run only queues the itranslate folders and nodes it would have deleted inline, and the target
+ * folders a folder move replaced, see {@link ArchiveBatch#moveFolder};
+ * {@link ArchiveCleanupWorker} deletes them later with its own session and commits.
+ * <p>
+ * Changes are made in the resolver's transient space; the caller commits them, so a path queued by a run
+ * only becomes visible to the worker together with the moves it belongs to.
+ */
+public class ArchiveCleanupQueue {
+
+    static final String QUEUE_PATH = ArchiveCursor.VAR_ROOT + "/cleanup/queue";
+
+    /** Entries that failed too often, kept for inspection and never retried. */
+    static final String DEAD_LETTER_PATH = ArchiveCursor.VAR_ROOT + "/cleanup/failed";
+
+    static final String PN_PATH = "path";
+    static final String PN_QUEUED_AT = "queuedAt";
+    static final String PN_ATTEMPTS = "attempts";
+
+    /** One queued delete. */
+    static class Entry {
+        final Resource resource;
+        final String path;
+        final Calendar queuedAt;
+        final int attempts;
+
+        Entry(final Resource resource, final String path, final Calendar queuedAt, final int attempts) {
+            this.resource = resource;
+            this.path = path;
+            this.queuedAt = queuedAt;
+            this.attempts = attempts;
+        }
+    }
+
+    private final ResourceResolver resolver;
+
+    public ArchiveCleanupQueue(final ResourceResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Queues a path for deletion, or refreshes the queue time if it is already queued.
+     */
+    public void enqueue(final String path) throws PersistenceException {
+        final Resource root = ResourceUtil.getOrCreateResource(resolver, QUEUE_PATH,
+                Collections.singletonMap("jcr:primaryType", (Object) "sling:Folder"), "sling:Folder", false);
+        final String name = Text.escapeIllegalJcrChars(path);
+        Resource entry = root.getChild(name);
+        if (entry == null) {
+            entry = resolver.create(root, name, Collections.singletonMap("jcr:primaryType", (Object) "nt:unstructured"));
+        }
+        final ModifiableValueMap properties = entry.adaptTo(ModifiableValueMap.class);
+        if (properties == null) {
+            throw new PersistenceException("Queue entry at " + entry.getPath() + " is not modifiable");
+        }
+        properties.put(PN_PATH, path);
+        properties.put(PN_QUEUED_AT, Calendar.getInstance());
+    }
+
+    /**
+     * @return up to {@code limit} queued deletes
+     */
+    public List<Entry> next(final int limit) {
+        final List<Entry> entries = new ArrayList<>();
+        final Resource root = resolver.getResource(QUEUE_PATH);
+        if (root == null) {
+            return entries;
+        }
+        for (final Resource entry : root.getChildren()) {
+            if (entries.size() >= limit) {
+                break;
+            }
+            final ValueMap properties = entry.getValueMap();
+            entries.add(new Entry(entry, properties.get(PN_PATH, String.class), properties.get(PN_QUEUED_AT, Calendar.class),
+                    properties.get(PN_ATTEMPTS, 0)));
+        }
+        return entries;
+    }
+
+    public void remove(final Entry entry) throws PersistenceException {
+        resolver.delete(entry.resource);
+    }
+
+    /**
+     * Records a failed attempt to delete the entry's path, and moves the entry to {@link #DEAD_LETTER_PATH} once
+     * it failed {@code maxAttempts} times. Re-reads the entry, as the pending changes of the attempt were reverted.
+     *
+     * @return true if the entry was moved to the dead letters
+     */
+    public boolean failed(final Entry entry, final int maxAttempts) throws PersistenceException {
+        final Resource resource = resolver.getResource(entry.resource.getPath());
+        if (resource == null) {
+            return false;
+        }
+        final ModifiableValueMap properties = resource.adaptTo(ModifiableValueMap.class);
+        if (properties == null) {
+            throw new PersistenceException("Queue entry at " + resource.getPath() + " is not modifiable");
+        }
+        final int attempts = entry.attempts + 1;
+        properties.put(PN_ATTEMPTS, attempts);
+        if (attempts < maxAttempts) {
+            return false;
+        }
+        final Resource deadLetters = ResourceUtil.getOrCreateResource(resolver, DEAD_LETTER_PATH,
+                Collections.singletonMap("jcr:primaryType", (Object) "sling:Folder"), "sling:Folder", false);
+        final Resource previous = deadLetters.getChild(resource.getName());
+        if (previous != null) {
+            resolver.delete(previous);
+        }
+        resolver.move(resource.getPath(), DEAD_LETTER_PATH);
+        return true;
+    }
+}
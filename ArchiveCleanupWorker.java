@@ -0,0 +1,222 @@
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the {@link ArchiveCleanupQueue} in the background, so heavy DAM deletes no longer run in the session
+ * of the archive moves. Deletes are committed every {@code batch.size} queue entries; the entries of a batch
+ * that fails are retried one by one, and an entry that keeps failing is moved to the dead letters after
+ * {@code max.attempts} runs. A path that was created again after it was
+ * queued is left alone. Runs on one instance of the cluster at a time, see {@link ArchiveRunGuard}. Committed
+ * deletes and dead letters are counted in the {@code cleanup} scope of {@link ArchiveMetrics}.
+ */
+@Component(
+        service = Runnable.class,
+        property = {
+                "scheduler.period:Long=60",
+                "scheduler.concurrent:Boolean=false"
+        }
+)
+@Designate(ocd = ArchiveCleanupWorker.Config.class)
+public class ArchiveCleanupWorker implements Runnable {
+
+    @ObjectClassDefinition(name = "Archive Cleanup Worker")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Batch size",
+                description = "Number of queued deletes saved per commit")
+        int batch_size() default 50;
+
+        @AttributeDefinition(
+                name = "Maximum attempts",
+                description = "Number of failed attempts after which a queued delete is moved to the dead letters")
+        int max_attempts() default 5;
+    }
+
+    static final String LEASE_PATH = ArchiveCursor.VAR_ROOT + "/cleanup/lease";
+
+    private static final String SERVICE_USER = "playserviceuser";
+    private static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveCleanupWorker.class);
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    private SlingSettingsService slingSettingsService;
+
+    @Reference
+    private ArchiveAuditJournal journal;
+
+    @Reference
+    private MetricsService metricsService;
+
+    /** Outcome of one run. */
+    private static class Counts {
+        int deleted;
+        int failed;
+        int deadLettered;
+    }
+
+    private int batchSize = 50;
+    private int maxAttempts = 5;
+    private ArchiveRunGuard runGuard;
+    private ArchiveMetrics metrics;
+    private ServiceRegistration<DynamicMBean> metricsRegistration;
+
+    @Activate
+    protected void activate(final Config config, final BundleContext bundleContext) throws NotCompliantMBeanException {
+        batchSize = Math.max(1, config.batch_size());
+        maxAttempts = Math.max(1, config.max_attempts());
+        metrics = new ArchiveMetrics(metricsService, "cleanup");
+        metricsRegistration = metrics.register(bundleContext);
+        runGuard = new ArchiveRunGuard(resourceResolverFactory, SERVICE_USER, LEASE_PATH,
+                slingSettingsService.getSlingId(), LEASE_MILLIS);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        runGuard.close();
+        metricsRegistration.unregister();
+    }
+
+    @Override
+    public void run() {
+        runGuard.run(this::drain);
+    }
+
+    private void drain() {
+        final Map<String, Object> param = new HashMap<>();
+        param.put(ResourceResolverFactory.SUBSERVICE, SERVICE_USER);
+
+        try (final ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
+            final ArchiveCleanupQueue queue = new ArchiveCleanupQueue(resolver);
+            final Counts counts = new Counts();
+            List<ArchiveCleanupQueue.Entry> entries;
+            // a lost lease stops the run between batches
+            while (runGuard.holdsLease() && !(entries = queue.next(batchSize)).isEmpty()) {
+                final List<String> deletedPaths = new ArrayList<>();
+                try {
+                    for (final ArchiveCleanupQueue.Entry entry : entries) {
+                        if (delete(resolver, entry)) {
+                            deletedPaths.add(entry.path);
+                        }
+                        queue.remove(entry);
+                    }
+                    resolver.commit();
+                    journalDeletes(deletedPaths, counts);
+                } catch (PersistenceException e) {
+                    resolver.revert();
+                    LOG.warn("Failed to commit batch of {} cleanup deletes, retrying them one by one: {}", entries.size(), e.getMessage());
+                    if (!drainOneByOne(resolver, queue, entries, counts)) {
+                        // entries that failed again stay queued for the next run instead of being retried in a loop
+                        break;
+                    }
+                }
+            }
+            if (counts.deleted > 0 || counts.failed > 0 || counts.deadLettered > 0) {
+                LOG.info("Cleanup run: {} nodes deleted, {} deletes failed, {} given up after {} attempts",
+                        counts.deleted, counts.failed, counts.deadLettered, maxAttempts);
+            }
+        } catch (LoginException e) {
+            LOG.error("Error obtaining resource resolver", e);
+        }
+    }
+
+    /**
+     * Commits the entries of a failed batch one at a time, so one failing delete does not hold back the others.
+     * An entry that fails records the attempt and is moved to the dead letters once it failed
+     * {@code max.attempts} times.
+     *
+     * @return true if every entry left the queue
+     */
+    private boolean drainOneByOne(final ResourceResolver resolver, final ArchiveCleanupQueue queue,
+                                  final List<ArchiveCleanupQueue.Entry> entries, final Counts counts) {
+        boolean drained = true;
+        for (final ArchiveCleanupQueue.Entry entry : entries) {
+            try {
+                final boolean deleted = delete(resolver, entry);
+                queue.remove(entry);
+                resolver.commit();
+                journalDeletes(deleted ? Collections.singletonList(entry.path) : Collections.<String>emptyList(), counts);
+            } catch (PersistenceException e) {
+                resolver.revert();
+                counts.failed++;
+                try {
+                    final boolean deadLettered = queue.failed(entry, maxAttempts);
+                    resolver.commit();
+                    if (deadLettered) {
+                        counts.deadLettered++;
+                        metrics.cleanupDeadLettered();
+                        LOG.error("Giving up deleting {} after {} attempts, moved it to {}: {}", entry.path, maxAttempts,
+                                ArchiveCleanupQueue.DEAD_LETTER_PATH, e.getMessage());
+                    } else {
+                        drained = false;
+                        LOG.warn("Failed to delete {}, keeping it queued: {}", entry.path, e.getMessage());
+                    }
+                } catch (PersistenceException recordFailure) {
+                    resolver.revert();
+                    drained = false;
+                    LOG.error("Failed to record failed delete of {}: {}", entry.path, recordFailure.getMessage());
+                }
+            }
+        }
+        return drained;
+    }
+
+    private void journalDeletes(final List<String> deletedPaths, final Counts counts) {
+        counts.deleted += deletedPaths.size();
+        for (final String path : deletedPaths) {
+            metrics.cleanupDeleted(path);
+            journal.delete(path);
+        }
+    }
+
+    /**
+     * @return true if the path was deleted
+     */
+    private boolean delete(final ResourceResolver resolver, final ArchiveCleanupQueue.Entry entry) throws PersistenceException {
+        if (entry.path == null) {
+            return false;
+        }
+        final Resource resource = resolver.getResource(entry.path);
+        if (resource == null) {
+            return false;
+        }
+        final Calendar created = resource.getValueMap().get("jcr:created", Calendar.class);
+        if (created != null && entry.queuedAt != null && created.after(entry.queuedAt)) {
+            LOG.info("Keeping {}, it was created again after it was queued for deletion", entry.path);
+            return false;
+        }
+        resolver.delete(resource);
+        LOG.debug("Deleted {}", entry.path);
+        return true;
+    }
+}
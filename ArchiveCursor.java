@@ -0,0 +1,130 @@
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Progress of an archive walk, persisted under /var so a run that is interrupted can be resumed
+ * by the next one instead of starting again from the base path.
+ * <p>
+ * Changes to the cursor are made in the resolver's transient space and are saved together with
+ * the next batch of moves, so the stored position never runs ahead of the committed moves.
+ */
+public class ArchiveCursor {
+
+    static final String VAR_ROOT = "/var/move-content";
+
+    private static final String PN_LAST_COMPLETED_PATH = "lastCompletedPath";
+    private static final String PN_BATCH_NUMBER = "batchNumber";
+    private static final String PN_CUTOFF_DATE = "cutoffDate";
+
+    private final ResourceResolver resolver;
+    private final String path;
+
+    private String lastCompletedPath;
+    private long batchNumber;
+    private Calendar cutoffDate;
+
+    private ArchiveCursor(final ResourceResolver resolver, final String path) {
+        this.resolver = resolver;
+        this.path = path;
+    }
+
+    /**
+     * Reads the cursor stored at the given path; a missing node yields a cursor that is not resuming.
+     */
+    public static ArchiveCursor load(final ResourceResolver resolver, final String path) {
+        final ArchiveCursor cursor = new ArchiveCursor(resolver, path);
+        final Resource resource = resolver.getResource(path);
+        if (resource != null) {
+            final ValueMap properties = resource.getValueMap();
+            cursor.lastCompletedPath = properties.get(PN_LAST_COMPLETED_PATH, String.class);
+            cursor.batchNumber = properties.get(PN_BATCH_NUMBER, 0L);
+            cursor.cutoffDate = properties.get(PN_CUTOFF_DATE, Calendar.class);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return true if an earlier run stopped before completing its walk
+     */
+    public boolean isResuming() {
+        return cutoffDate != null;
+    }
+
+    public String getLastCompletedPath() {
+        return lastCompletedPath;
+    }
+
+    public long getBatchNumber() {
+        return batchNumber;
+    }
+
+    public Date getCutoffDate() {
+        return cutoffDate != null ? cutoffDate.getTime() : null;
+    }
+
+    /**
+     * Starts a new walk with the given cutoff date, unless an interrupted walk is being resumed.
+     */
+    public void start(final Date targetDate) throws PersistenceException {
+        if (isResuming()) {
+            return;
+        }
+        cutoffDate = Calendar.getInstance();
+        cutoffDate.setTime(targetDate);
+        lastCompletedPath = null;
+        batchNumber = 0;
+        write();
+    }
+
+    /**
+     * Records that everything up to and including the given path has been processed.
+     *
+     * @param completedPath     the path of the last processed resource
+     * @param batchesCommitted  the number of batches committed by the current run so far
+     */
+    public void markCompleted(final String completedPath, final long batchesCommitted) throws PersistenceException {
+        lastCompletedPath = completedPath;
+        write(batchesCommitted);
+    }
+
+    /**
+     * Removes the cursor once the walk has completed, so the next run starts from the beginning.
+     */
+    public void reset() throws PersistenceException {
+        final Resource resource = resolver.getResource(path);
+        if (resource != null) {
+            resolver.delete(resource);
+        }
+        lastCompletedPath = null;
+        batchNumber = 0;
+        cutoffDate = null;
+    }
+
+    private void write() throws PersistenceException {
+        write(0);
+    }
+
+    private void write(final long batchesCommitted) throws PersistenceException {
+        final Resource resource = ResourceUtil.getOrCreateResource(resolver, path,
+                Collections.singletonMap("jcr:primaryType", (Object) "nt:unstructured"), "sling:Folder", false);
+        final ModifiableValueMap properties = resource.adaptTo(ModifiableValueMap.class);
+        if (properties == null) {
+            throw new PersistenceException("Cursor at " + path + " is not modifiable");
+        }
+        properties.put(PN_CUTOFF_DATE, cutoffDate);
+        properties.put(PN_BATCH_NUMBER, batchNumber + batchesCommitted);
+        if (lastCompletedPath != null) {
+            properties.put(PN_LAST_COMPLETED_PATH, lastCompletedPath);
+        } else {
+            properties.remove(PN_LAST_COMPLETED_PATH);
+        }
+    }
+}
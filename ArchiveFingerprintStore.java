@@ -0,0 +1,228 @@
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+/**
+ * Persisted per-folder fingerprints that let the walk skip re-evaluating the nodes of folders which did not
+ * change since the last run. A {@link Fingerprint} holds the number of children of a folder, their latest
+ * {@code jcr:lastModified} (or {@code cq:lastModified}), the earliest date of a node that was not yet due and
+ * the outcome of evaluating the folder's own nodes. A folder whose children and modification times are
+ * unchanged, evaluated with the same rule, and whose earliest pending date has not passed the cutoff yet
+ * cannot have anything new to archive; its stored outcome then stands in for evaluating its nodes again, so it
+ * still counts towards whether an ancestor can be moved as a whole. Fingerprints are stored below the root path
+ * at the folder's own path.
+ * <p>
+ * Changes are made in the resolver's transient space and are saved together with the next batch of moves.
+ */
+public class ArchiveFingerprintStore {
+
+    private static final String PN_CHILD_COUNT = "childCount";
+    private static final String PN_MAX_LAST_MODIFIED = "maxLastModified";
+    private static final String PN_EARLIEST_PENDING = "earliestPending";
+    private static final String PN_RULE = "rule";
+    private static final String PN_NOT_DUE = "notDue";
+    private static final String PN_MISSING_DATE = "missingDate";
+    private static final String PN_INVALID_DATE = "invalidDate";
+    private static final String PN_SKIPPED_STATUS = "skippedStatus";
+    private static final String PN_MIN_DATE = "minDate";
+    private static final String PN_MAX_DATE = "maxDate";
+
+    /** State of one folder as seen by a run. */
+    static class Fingerprint {
+        long childCount;
+        long maxLastModified;
+        long earliestPending = Long.MAX_VALUE;
+        String rule;
+        /** Outcome of evaluating the folder's own nodes, see {@link ArchiveFolderSummary}. */
+        int notDue;
+        int missingDate;
+        int invalidDate;
+        int skippedStatus;
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        /** False if a child has no modification time or the run moved some of the children. */
+        boolean reliable = true;
+
+        Fingerprint() {
+        }
+
+        /**
+         * Starts the fingerprint of a folder; the walk adds its children as it lists them, so taking the
+         * fingerprint does not list the folder a second time.
+         */
+        Fingerprint(final ArchiveRule rule) {
+            this.rule = rule.getSignature();
+        }
+
+        /**
+         * Adds a child folder, which is walked on its own and carries its own fingerprint.
+         */
+        void addFolder() {
+            childCount++;
+        }
+
+        /**
+         * Adds a child node by its modification time.
+         */
+        void addNode(final Resource child) {
+            childCount++;
+            Calendar lastModified = lastModified(child.getValueMap());
+            if (lastModified == null) {
+                // pages keep their modification time on jcr:content
+                final Resource content = child.getChild("jcr:content");
+                if (content != null) {
+                    lastModified = lastModified(content.getValueMap());
+                }
+            }
+            if (lastModified == null) {
+                reliable = false;
+            } else {
+                maxLastModified = Math.max(maxLastModified, lastModified.getTimeInMillis());
+            }
+        }
+
+        private static Calendar lastModified(final ValueMap properties) {
+            final Calendar lastModified = properties.get("jcr:lastModified", Calendar.class);
+            return lastModified != null ? lastModified : properties.get("cq:lastModified", Calendar.class);
+        }
+
+        /**
+         * Records the outcome of evaluating the folder's own nodes.
+         */
+        void record(final ArchiveFolderSummary nodes) {
+            notDue = nodes.notDue;
+            missingDate = nodes.missingDate;
+            invalidDate = nodes.invalidDate;
+            skippedStatus = nodes.skippedStatus;
+            minDate = nodes.minDate;
+            maxDate = nodes.maxDate;
+            earliestPending = nodes.earliestPending;
+        }
+
+        /**
+         * @return the outcome of evaluating the folder's own nodes when the fingerprint was stored; nothing
+         *         was eligible then, or the moves would have invalidated it
+         */
+        ArchiveFolderSummary restore(final String path, final String name) {
+            final ArchiveFolderSummary nodes = new ArchiveFolderSummary(path, name);
+            nodes.notDue = notDue;
+            nodes.missingDate = missingDate;
+            nodes.invalidDate = invalidDate;
+            nodes.skippedStatus = skippedStatus;
+            nodes.minDate = minDate;
+            nodes.maxDate = maxDate;
+            nodes.earliestPending = earliestPending;
+            return nodes;
+        }
+
+        /**
+         * Marks the fingerprint as not describing the folder after the run, e.g. because children were moved.
+         */
+        void invalidate() {
+            reliable = false;
+        }
+
+        /**
+         * @return true if the folder did not change since the stored fingerprint and nothing in it became due
+         */
+        boolean isUnchangedSince(final Fingerprint stored, final ArchiveRule rule) {
+            return stored != null && reliable
+                    && childCount == stored.childCount
+                    && maxLastModified == stored.maxLastModified
+                    && rule.getSignature().equals(stored.rule)
+                    && stored.earliestPending >= rule.getCutoff().getTime();
+        }
+    }
+
+    private final ResourceResolver resolver;
+    private final String rootPath;
+
+    public ArchiveFingerprintStore(final ResourceResolver resolver, final String rootPath) {
+        this.resolver = resolver;
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * @return the fingerprint stored by an earlier run, or null
+     */
+    public Fingerprint load(final String folderPath) {
+        final Resource resource = resolver.getResource(rootPath + folderPath);
+        if (resource == null) {
+            return null;
+        }
+        final ValueMap properties = resource.getValueMap();
+        final Long childCount = properties.get(PN_CHILD_COUNT, Long.class);
+        if (childCount == null || !properties.containsKey(PN_NOT_DUE)) {
+            // fingerprints without the outcome of the folder's nodes cannot stand in for evaluating them
+            return null;
+        }
+        final Fingerprint fingerprint = new Fingerprint();
+        fingerprint.childCount = childCount;
+        fingerprint.maxLastModified = properties.get(PN_MAX_LAST_MODIFIED, 0L);
+        fingerprint.earliestPending = properties.get(PN_EARLIEST_PENDING, Long.MAX_VALUE);
+        fingerprint.rule = properties.get(PN_RULE, String.class);
+        fingerprint.notDue = properties.get(PN_NOT_DUE, 0);
+        fingerprint.missingDate = properties.get(PN_MISSING_DATE, 0);
+        fingerprint.invalidDate = properties.get(PN_INVALID_DATE, 0);
+        fingerprint.skippedStatus = properties.get(PN_SKIPPED_STATUS, 0);
+        fingerprint.minDate = properties.get(PN_MIN_DATE, Long.MAX_VALUE);
+        fingerprint.maxDate = properties.get(PN_MAX_DATE, Long.MIN_VALUE);
+        return fingerprint;
+    }
+
+    /**
+     * Stores the fingerprint of a folder, or removes the stored one if the fingerprint is not reliable.
+     */
+    public void store(final String folderPath, final Fingerprint fingerprint) throws PersistenceException {
+        if (!fingerprint.reliable) {
+            clear(folderPath);
+            return;
+        }
+        final Resource resource = ResourceUtil.getOrCreateResource(resolver, rootPath + folderPath,
+                Collections.singletonMap("jcr:primaryType", (Object) "nt:unstructured"), "sling:Folder", false);
+        final ModifiableValueMap properties = resource.adaptTo(ModifiableValueMap.class);
+        if (properties == null) {
+            throw new PersistenceException("Fingerprint at " + resource.getPath() + " is not modifiable");
+        }
+        properties.put(PN_CHILD_COUNT, fingerprint.childCount);
+        properties.put(PN_MAX_LAST_MODIFIED, fingerprint.maxLastModified);
+        properties.put(PN_EARLIEST_PENDING, fingerprint.earliestPending);
+        properties.put(PN_RULE, fingerprint.rule);
+        properties.put(PN_NOT_DUE, fingerprint.notDue);
+        properties.put(PN_MISSING_DATE, fingerprint.missingDate);
+        properties.put(PN_INVALID_DATE, fingerprint.invalidDate);
+        properties.put(PN_SKIPPED_STATUS, fingerprint.skippedStatus);
+        properties.put(PN_MIN_DATE, fingerprint.minDate);
+        properties.put(PN_MAX_DATE, fingerprint.maxDate);
+    }
+
+    /**
+     * Removes the fingerprint of a folder; the fingerprints of its descendants are kept.
+     */
+    public void clear(final String folderPath) {
+        final Resource resource = resolver.getResource(rootPath + folderPath);
+        if (resource == null) {
+            return;
+        }
+        final ModifiableValueMap properties = resource.adaptTo(ModifiableValueMap.class);
+        if (properties != null) {
+            properties.remove(PN_CHILD_COUNT);
+        }
+    }
+
+    /**
+     * Removes the fingerprints of a folder that was moved away, including those of its descendants.
+     */
+    public void remove(final String folderPath) throws PersistenceException {
+        final Resource resource = resolver.getResource(rootPath + folderPath);
+        if (resource != null) {
+            resolver.delete(resource);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import org.apache.sling.api.resource.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of evaluating a folder and, when walked bottom up, its whole subtree. Counts and dates cover the
+ * subtree, so a parent decides whether it can be moved as a whole from the summaries of its child folders
+ * without reading their nodes again. The eligible nodes and wholly eligible child folders are kept for the
+ * folder's own level only, and are dropped once the folder itself turns out to be movable as a whole.
+ */
+class ArchiveFolderSummary {
+
+    final String path;
+    final String name;
+
+    int eligible;
+    int notDue;
+    int missingDate;
+    int invalidDate;
+    int skippedStatus;
+
+    /** Earliest and latest date of the dated nodes in the subtree, in millis. */
+    long minDate = Long.MAX_VALUE;
+    long maxDate = Long.MIN_VALUE;
+
+    /** Earliest date of the folder's own nodes that are not due yet, in millis. */
+    long earliestPending = Long.MAX_VALUE;
+
+    /** True if part of the subtree was not evaluated, so the folder must not be moved as a whole. */
+    boolean blocked;
+
+    final List<String> eligibleNodePaths = new ArrayList<>();
+    final List<ArchiveFolderSummary> eligibleFolders = new ArrayList<>();
+
+    ArchiveFolderSummary(final String path, final String name) {
+        this.path = path;
+        this.name = name;
+    }
+
+    /**
+     * Tells the folders of a level apart from the nodes it holds: a child with children is a folder unless it
+     * is a page, i.e. has a jcr:content child, which is evaluated and moved as a node like a leaf.
+     */
+    static boolean isFolder(final Resource child) {
+        return child.hasChildren() && child.getChild("jcr:content") == null;
+    }
+
+    /**
+     * Records one of the folder's own nodes.
+     *
+     * @param dateMillis  the node's date, or -1 if it has none
+     */
+    void add(final String nodePath, final ArchiveRule.Decision decision, final long dateMillis) {
+        switch (decision) {
+            case ELIGIBLE:
+                eligible++;
+                eligibleNodePaths.add(nodePath);
+                break;
+            case NOT_DUE:
+                notDue++;
+                if (dateMillis >= 0) {
+                    earliestPending = Math.min(earliestPending, dateMillis);
+                }
+                break;
+            case MISSING_DATE:
+                missingDate++;
+                break;
+            case INVALID_DATE:
+                invalidDate++;
+                break;
+            default:
+                skippedStatus++;
+        }
+        if (dateMillis >= 0) {
+            minDate = Math.min(minDate, dateMillis);
+            maxDate = Math.max(maxDate, dateMillis);
+        }
+    }
+
+    /**
+     * Adds the subtree of a child folder.
+     */
+    void addChild(final ArchiveFolderSummary child) {
+        eligible += child.eligible;
+        notDue += child.notDue;
+        missingDate += child.missingDate;
+        invalidDate += child.invalidDate;
+        skippedStatus += child.skippedStatus;
+        minDate = Math.min(minDate, child.minDate);
+        maxDate = Math.max(maxDate, child.maxDate);
+        blocked |= child.blocked;
+        if (child.isFullyEligible()) {
+            eligibleFolders.add(child);
+        }
+    }
+
+    /**
+     * Adds the outcome of evaluating the folder's own nodes, taken separately so it can be stored with the
+     * folder's fingerprint.
+     */
+    void addNodes(final ArchiveFolderSummary nodes) {
+        eligible += nodes.eligible;
+        notDue += nodes.notDue;
+        missingDate += nodes.missingDate;
+        invalidDate += nodes.invalidDate;
+        skippedStatus += nodes.skippedStatus;
+        minDate = Math.min(minDate, nodes.minDate);
+        maxDate = Math.max(maxDate, nodes.maxDate);
+        earliestPending = Math.min(earliestPending, nodes.earliestPending);
+        eligibleNodePaths.addAll(nodes.eligibleNodePaths);
+    }
+
+    void block() {
+        blocked = true;
+    }
+
+    /**
+     * @return true if the subtree has eligible nodes and none that must stay, so it can be moved as a whole
+     */
+    boolean isFullyEligible() {
+        return !blocked && eligible > 0 && notDue == 0 && missingDate == 0;
+    }
+
+    /**
+     * @return true if moving this level changes the folder, i.e. it has eligible nodes or child folders
+     */
+    boolean hasMovesHere() {
+        return !eligibleNodePaths.isEmpty() || !eligibleFolders.isEmpty();
+    }
+
+    /**
+     * Drops the per level lists once the folder is moved as a whole, so a large eligible subtree is not held
+     * in memory until its topmost eligible ancestor has been found.
+     */
+    void compact() {
+        eligibleNodePaths.clear();
+        eligibleFolders.clear();
+    }
+}
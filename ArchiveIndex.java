@@ -0,0 +1,28 @@
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+
+/**
+ * The Lucene index shipped in the content package for the archive properties, shared by the query driven
+ * selection modes of {@link MoveContentScheduler} and {@link MoveContentJob}.
+ */
+final class ArchiveIndex {
+
+    static final String PATH = "/oak:index/archiveContent";
+
+    private ArchiveIndex() {
+    }
+
+    /**
+     * The query modes are only used once the index exists, is enabled and its initial (re)index has completed,
+     * otherwise every query would fall back to traversing the content tree.
+     */
+    static boolean isReady(final ResourceResolver resolver) {
+        final Resource index = resolver.getResource(PATH);
+        if (index == null) {
+            return false;
+        }
+        final ValueMap properties = index.getValueMap();
+        return !properties.get("reindex", false) && !"disabled".equals(properties.get("type", String.class));
+    }
+}
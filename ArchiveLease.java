@@ -0,0 +1,122 @@
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.util.Calendar;
+import java.util.Collections;
+
+/**
+ * Cluster-wide lease of an archive component, persisted under /var with its owner and expiry, so at most one
+ * instance runs the component at a time. An expired lease may be taken over by any instance, which covers an
+ * owner that died mid-run. Two instances taking the lease at the same moment conflict on save and only one of
+ * them wins.
+ * <p>
+ * The lease is written with its own resolver and committed immediately, independent of the batches of the run.
+ */
+public class ArchiveLease {
+
+    static final String PN_OWNER = "owner";
+    static final String PN_EXPIRES_AT = "expiresAt";
+
+    private final ResourceResolver resolver;
+    private final String path;
+    private final String owner;
+    private final long durationMillis;
+
+    private String holder;
+
+    /**
+     * @param resolver        a resolver used for the lease only
+     * @param path            the path of the lease node
+     * @param owner           identifies this instance, e.g. its Sling id
+     * @param durationMillis  how long the lease is valid after it was taken or renewed
+     */
+    public ArchiveLease(final ResourceResolver resolver, final String path, final String owner, final long durationMillis) {
+        this.resolver = resolver;
+        this.path = path;
+        this.owner = owner;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return true if this instance now holds the lease
+     */
+    public boolean acquire() {
+        resolver.refresh();
+        final Resource resource = resolver.getResource(path);
+        if (resource != null) {
+            final ValueMap properties = resource.getValueMap();
+            final String currentOwner = properties.get(PN_OWNER, String.class);
+            final Calendar expiresAt = properties.get(PN_EXPIRES_AT, Calendar.class);
+            if (currentOwner != null && !owner.equals(currentOwner)
+                    && expiresAt != null && expiresAt.getTimeInMillis() > System.currentTimeMillis()) {
+                holder = currentOwner;
+                return false;
+            }
+        }
+        return write();
+    }
+
+    /**
+     * Extends the lease, unless another instance took it over in the meantime.
+     *
+     * @return false if the lease was lost
+     */
+    public boolean renew() {
+        resolver.refresh();
+        final Resource resource = resolver.getResource(path);
+        if (resource == null || !owner.equals(resource.getValueMap().get(PN_OWNER, String.class))) {
+            return false;
+        }
+        return write();
+    }
+
+    /**
+     * Gives the lease up if this instance still holds it.
+     */
+    public void release() {
+        resolver.refresh();
+        final Resource resource = resolver.getResource(path);
+        if (resource == null || !owner.equals(resource.getValueMap().get(PN_OWNER, String.class))) {
+            return;
+        }
+        try {
+            resolver.delete(resource);
+            resolver.commit();
+        } catch (PersistenceException e) {
+            resolver.revert();
+        }
+    }
+
+    /**
+     * @return the owner of the lease when {@link #acquire()} failed
+     */
+    public String getHolder() {
+        return holder;
+    }
+
+    private boolean write() {
+        try {
+            final Resource resource = ResourceUtil.getOrCreateResource(resolver, path,
+                    Collections.singletonMap("jcr:primaryType", (Object) "nt:unstructured"), "sling:Folder", false);
+            final ModifiableValueMap properties = resource.adaptTo(ModifiableValueMap.class);
+            if (properties == null) {
+                return false;
+            }
+            final Calendar expiresAt = Calendar.getInstance();
+            expiresAt.setTimeInMillis(System.currentTimeMillis() + durationMillis);
+            properties.put(PN_OWNER, owner);
+            properties.put(PN_EXPIRES_AT, expiresAt);
+            resolver.commit();
+            holder = owner;
+            return true;
+        } catch (PersistenceException e) {
+            // another instance wrote the lease concurrently
+            resolver.revert();
+            return false;
+        }
+    }
+}
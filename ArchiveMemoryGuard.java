@@ -0,0 +1,114 @@
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounds the transient space of an archive session by the estimated number of nodes its pending changes touch,
+ * not only by the number of moves, so a batch of a few huge pages cannot grow without limit. A batch is saved
+ * early once the estimate reaches the flush threshold or the heap is fuller than the configured share; a single
+ * change above the abort threshold is not made at all, and the node is reported instead, see {@link ArchiveBatch}.
+ * Subtrees are only counted as far as the caller needs, so a change costs a walk of the room left in the batch
+ * rather than of its whole subtree. The heap is judged by the tenured pools as the last garbage collection left
+ * them, so garbage that was not collected yet does not force a save on every change.
+ * <p>
+ * The thresholds are fixed, so one guard can be shared by all batches of a component.
+ */
+public class ArchiveMemoryGuard {
+
+    private final long flushNodes;
+    private final long abortNodes;
+    private final int flushHeapPercent;
+    private final List<MemoryPoolMXBean> tenuredPools = new ArrayList<>();
+
+    /**
+     * @param flushNodes        estimated pending nodes at which a batch is saved early
+     * @param abortNodes        estimated nodes of a single change above which the change is not made
+     * @param flushHeapPercent  used share of the maximum heap at which a batch is saved early; 0 disables the check
+     */
+    public ArchiveMemoryGuard(final long flushNodes, final long abortNodes, final int flushHeapPercent) {
+        this.flushNodes = Math.max(1, flushNodes);
+        this.abortNodes = Math.max(this.flushNodes, abortNodes);
+        this.flushHeapPercent = flushHeapPercent;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // only the pools that live data ends up in support a usage threshold, eden and survivor spaces do not
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                tenuredPools.add(pool);
+            }
+        }
+    }
+
+    /**
+     * Counts the nodes of the subtree at the given path, stopping once the count exceeds the abort threshold.
+     */
+    public long countNodes(final Session session, final String path) throws RepositoryException {
+        return countNodes(session, path, abortNodes);
+    }
+
+    /**
+     * Counts the nodes of the subtree at the given path, stopping once the count exceeds the given limit.
+     */
+    public long countNodes(final Session session, final String path, final long limit) throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return 0;
+        }
+        long count = 0;
+        final Deque<Node> pending = new ArrayDeque<>();
+        pending.push(session.getNode(path));
+        while (!pending.isEmpty() && count <= limit) {
+            final Node node = pending.pop();
+            count++;
+            for (final NodeIterator children = node.getNodes(); children.hasNext(); ) {
+                pending.push(children.nextNode());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of nodes a batch with the given estimate can still take before it is saved
+     */
+    public long room(final long pendingNodes) {
+        return Math.max(0, flushNodes - pendingNodes);
+    }
+
+    /**
+     * @return true if a batch with the given estimate should be saved before it grows further
+     */
+    public boolean shouldFlush(final long pendingNodes) {
+        return pendingNodes >= flushNodes || isHeapFull();
+    }
+
+    /**
+     * @return true if a single change of the given estimate is too large to be staged at all
+     */
+    public boolean mustAbort(final long nodes) {
+        return nodes > abortNodes;
+    }
+
+    private boolean isHeapFull() {
+        if (flushHeapPercent <= 0) {
+            return false;
+        }
+        for (final MemoryPoolMXBean pool : tenuredPools) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0 && usage.getUsed() * 100 >= usage.getMax() * flushHeapPercent) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "flush at " + flushNodes + " nodes or " + flushHeapPercent + "% heap after GC, abort above " + abortNodes + " nodes";
+    }
+}
@@ -0,0 +1,232 @@
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.commons.metrics.Counter;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.metrics.Timer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counters and timers of the archive runs of one component, published through Sling Metrics under
+ * {@code archive.<scope>.*} and as the JMX bean {@value #OBJECT_NAME},name=&lt;scope&gt;. Each run component
+ * creates its own instance, so the runs of one do not mix with the counts, the run timer and the last run
+ * duration of another. The run classes count scanned nodes and parse failures as they go, and hand every
+ * finished {@link ArchiveBatch} to {@link #record(ArchiveBatch)} for the committed moves and deletes and the
+ * time spent in traversal, {@code session.move} and {@code session.save}. The deletes queued for
+ * {@link ArchiveCleanupWorker} are counted by the worker's own instance once it actually deleted them.
+ */
+public class ArchiveMetrics extends StandardMBean implements ArchiveMetricsMBean {
+
+    static final String OBJECT_NAME = "com.site.archive:type=ArchiveMetrics";
+
+    private final String scope;
+    private final Counter nodesScanned;
+    private final Counter pagesMoved;
+    private final Counter foldersMoved;
+    private final Counter batchesCommitted;
+    private final Counter targetDeletes;
+    private final Counter itranslateDeletes;
+    private final Counter parseFailures;
+    private final Counter journalDropped;
+    private final Counter cleanupsDeadLettered;
+    private final Counter failedRuns;
+    private final Timer traversalTimer;
+    private final Timer moveTimer;
+    private final Timer saveTimer;
+    private final Timer runTimer;
+
+    private final AtomicLong traversalNanos = new AtomicLong();
+    private final AtomicLong moveNanos = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+    private final AtomicLong lastRunDurationNanos = new AtomicLong();
+    private final AtomicReference<Calendar> lastSuccess = new AtomicReference<>();
+
+    /**
+     * @param metricsService  the registry the counters and timers are created in
+     * @param scope           name of the component the metrics belong to, e.g. {@code scheduler}
+     */
+    public ArchiveMetrics(final MetricsService metricsService, final String scope) throws NotCompliantMBeanException {
+        super(ArchiveMetricsMBean.class);
+        this.scope = scope;
+        final String prefix = "archive." + scope + ".";
+        nodesScanned = metricsService.counter(prefix + "nodes.scanned");
+        pagesMoved = metricsService.counter(prefix + "pages.moved");
+        foldersMoved = metricsService.counter(prefix + "folders.moved");
+        batchesCommitted = metricsService.counter(prefix + "batches.committed");
+        targetDeletes = metricsService.counter(prefix + "deletes.target");
+        itranslateDeletes = metricsService.counter(prefix + "deletes.itranslate");
+        parseFailures = metricsService.counter(prefix + "parse.failures");
+        journalDropped = metricsService.counter(prefix + "journal.dropped");
+        cleanupsDeadLettered = metricsService.counter(prefix + "cleanups.deadlettered");
+        failedRuns = metricsService.counter(prefix + "runs.failed");
+        traversalTimer = metricsService.timer(prefix + "time.traversal");
+        moveTimer = metricsService.timer(prefix + "time.move");
+        saveTimer = metricsService.timer(prefix + "time.save");
+        runTimer = metricsService.timer(prefix + "time.run");
+    }
+
+    /**
+     * Publishes these metrics as a JMX bean named after the scope; the caller unregisters it on deactivation.
+     */
+    public ServiceRegistration<DynamicMBean> register(final BundleContext bundleContext) {
+        final Dictionary<String, Object> properties = new Hashtable<>();
+        properties.put("jmx.objectname", OBJECT_NAME + ",name=" + scope);
+        return bundleContext.registerService(DynamicMBean.class, this, properties);
+    }
+
+    public void nodeScanned() {
+        nodesScanned.increment();
+    }
+
+    public void parseFailure() {
+        parseFailures.increment();
+    }
+
+    /**
+     * Counts a queued delete that {@link ArchiveCleanupWorker} committed. Target folders replaced by a folder
+     * move count as target deletes, everything else is an itranslate delete.
+     */
+    public void cleanupDeleted(final String path) {
+        if (path.startsWith(ArchiveBatch.REPLACED_PATH + "/")) {
+            targetDeletes.increment();
+        } else {
+            itranslateDeletes.increment();
+        }
+    }
+
+    /**
+     * Counts a queued delete that {@link ArchiveCleanupWorker} gave up and moved to the dead letters.
+     */
+    public void cleanupDeadLettered() {
+        cleanupsDeadLettered.increment();
+    }
+
+    /**
+     * Adds the committed moves and deletes and the timings of a finished batch. Traversal is the lifetime of
+     * the batch minus the time it spent moving and saving. Batches that only wrote a plan are ignored.
+     */
+    public void record(final ArchiveBatch batch) {
+        if (batch.isPlanning()) {
+            return;
+        }
+        final long move = batch.getMoveNanos();
+        final long save = batch.getSaveNanos();
+        final long traversal = Math.max(0, batch.getElapsedNanos() - move - save);
+
+        pagesMoved.increment(batch.getMovesCommitted() - batch.getFolderMovesCommitted());
+        foldersMoved.increment(batch.getFolderMovesCommitted());
+        batchesCommitted.increment(batch.getBatchesCommitted());
+        targetDeletes.increment(batch.getDeletesCommitted());
+        journalDropped.increment(batch.getJournalDropped());
+        traversalTimer.update(traversal, TimeUnit.NANOSECONDS);
+        moveTimer.update(move, TimeUnit.NANOSECONDS);
+        saveTimer.update(save, TimeUnit.NANOSECONDS);
+        traversalNanos.addAndGet(traversal);
+        moveNanos.addAndGet(move);
+        saveNanos.addAndGet(save);
+    }
+
+    /**
+     * @param durationNanos  wall clock time of the whole run
+     * @param success        false if a batch or subtree of the run failed
+     */
+    public void runFinished(final long durationNanos, final boolean success) {
+        runTimer.update(durationNanos, TimeUnit.NANOSECONDS);
+        lastRunDurationNanos.set(durationNanos);
+        if (success) {
+            lastSuccess.set(Calendar.getInstance());
+        } else {
+            failedRuns.increment();
+        }
+    }
+
+    @Override
+    public long getNodesScanned() {
+        return nodesScanned.getCount();
+    }
+
+    @Override
+    public long getPagesMoved() {
+        return pagesMoved.getCount();
+    }
+
+    @Override
+    public long getFoldersMoved() {
+        return foldersMoved.getCount();
+    }
+
+    @Override
+    public long getBatchesCommitted() {
+        return batchesCommitted.getCount();
+    }
+
+    @Override
+    public long getTargetDeletes() {
+        return targetDeletes.getCount();
+    }
+
+    @Override
+    public long getItranslateDeletes() {
+        return itranslateDeletes.getCount();
+    }
+
+    @Override
+    public long getParseFailures() {
+        return parseFailures.getCount();
+    }
+
+    @Override
+    public long getCleanupsDeadLettered() {
+        return cleanupsDeadLettered.getCount();
+    }
+
+    @Override
+    public long getJournalDropped() {
+        return journalDropped.getCount();
+    }
+
+    @Override
+    public long getTraversalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(traversalNanos.get());
+    }
+
+    @Override
+    public long getMoveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(moveNanos.get());
+    }
+
+    @Override
+    public long getSaveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(saveNanos.get());
+    }
+
+    @Override
+    public long getRuns() {
+        return runTimer.getCount();
+    }
+
+    @Override
+    public long getFailedRuns() {
+        return failedRuns.getCount();
+    }
+
+    @Override
+    public long getLastRunDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRunDurationNanos.get());
+    }
+
+    @Override
+    public String getLastSuccess() {
+        final Calendar last = lastSuccess.get();
+        return last != null ? ISO8601.format(last) : null;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * JMX view of {@link ArchiveMetrics}. Counts and times are totals since the owning component was activated.
+ */
+public interface ArchiveMetricsMBean {
+
+    long getNodesScanned();
+
+    long getPagesMoved();
+
+    long getFoldersMoved();
+
+    long getBatchesCommitted();
+
+    long getTargetDeletes();
+
+    long getItranslateDeletes();
+
+    /**
+     * @return the number of queued cleanup deletes given up after too many attempts, see {@link ArchiveCleanupQueue#DEAD_LETTER_PATH}
+     */
+    long getCleanupsDeadLettered();
+
+    long getParseFailures();
+
+    /**
+     * @return the number of committed changes missing from the audit journal because its buffer was full
+     */
+    long getJournalDropped();
+
+    long getTraversalMillis();
+
+    long getMoveMillis();
+
+    long getSaveMillis();
+
+    long getRuns();
+
+    long getFailedRuns();
+
+    long getLastRunDurationMillis();
+
+    /**
+     * @return the end of the last run that completed without failed batches, as ISO 8601, or null
+     */
+    String getLastSuccess();
+}
@@ -0,0 +1,88 @@
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Child names of the destination folders of a run, listed once per folder and kept up to date as the run moves,
+ * creates and deletes nodes, so the conflict checks before each move are answered from memory instead of a
+ * point read per candidate. Holds the most recently used {@link #MAX_FOLDERS} folders; a folder that was
+ * evicted is listed again when it is needed.
+ */
+class ArchiveNameIndex {
+
+    static final int MAX_FOLDERS = 256;
+
+    private final Map<String, Set<String>> names = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Set<String>> eldest) {
+            return size() > MAX_FOLDERS;
+        }
+    };
+
+    boolean exists(final ResourceResolver resolver, final String parentPath, final String name) {
+        Set<String> children = names.get(parentPath);
+        if (children == null) {
+            children = new HashSet<>();
+            final Resource parent = resolver.getResource(parentPath);
+            if (parent != null) {
+                for (final Resource child : parent.getChildren()) {
+                    children.add(child.getName());
+                }
+            }
+            names.put(parentPath, children);
+        }
+        return children.contains(name);
+    }
+
+    void added(final String path) {
+        final Set<String> children = names.get(parentOf(path));
+        if (children != null) {
+            children.add(nameOf(path));
+        }
+    }
+
+    /**
+     * Forgets the node and, if it was a folder, its listed children.
+     */
+    void removed(final String path) {
+        final Set<String> children = names.get(parentOf(path));
+        if (children != null) {
+            children.remove(nameOf(path));
+        }
+        names.keySet().removeIf(folder -> folder.equals(path) || folder.startsWith(path + "/"));
+    }
+
+    /**
+     * Records a folder created together with its missing ancestors.
+     */
+    void created(final String path) {
+        for (String current = path; current.length() > 1; current = parentOf(current)) {
+            added(current);
+        }
+    }
+
+    void moved(final String srcAbsPath, final String destAbsPath) {
+        removed(srcAbsPath);
+        added(destAbsPath);
+    }
+
+    /**
+     * Forgets everything, e.g. after the session's pending changes were discarded.
+     */
+    void clear() {
+        names.clear();
+    }
+
+    private static String parentOf(final String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "/";
+    }
+
+    private static String nameOf(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
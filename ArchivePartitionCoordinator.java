@@ -0,0 +1,161 @@
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.discovery.InstanceDescription;
+import org.apache.sling.discovery.TopologyEvent;
+import org.apache.sling.discovery.TopologyEventListener;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * Spreads the archive work of {@link MoveContentScheduler} over the instances of the author cluster. Every
+ * top level subtree of the base path belongs to one of a fixed number of partitions, and every partition has
+ * its own job topic. On each topology change the partitions are dealt out over the cluster members ordered by
+ * Sling id, and this instance registers itself as {@link JobExecutor} for the topics of its partitions only, so
+ * no two instances ever work on the same subtree. While the topology is changing an instance processes no
+ * partition at all, so during a rebalance a partition is never held by its old and its new owner at once. Jobs
+ * queued for a topic whose instance left the topology are reassigned by the job manager to the instance that
+ * took the partition over.
+ */
+@Component(
+        service = TopologyEventListener.class,
+        immediate = true
+)
+public class ArchivePartitionCoordinator implements TopologyEventListener, JobExecutor {
+
+    static final String TOPIC_PREFIX = "site/archive/partition/";
+
+    static final String PROPERTY_SUBTREE_PATH = "subtreePath";
+    static final String PROPERTY_TARGET_DATE = "targetDate";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchivePartitionCoordinator.class);
+
+    @Reference
+    private MoveContentScheduler moveContentScheduler;
+
+    private BundleContext bundleContext;
+    private ServiceRegistration<JobExecutor> registration;
+    private List<String> assignedTopics = Collections.emptyList();
+
+    /**
+     * @return the partition the top level subtree with the given name belongs to
+     */
+    static int partitionOf(final String name, final int partitions) {
+        return Math.floorMod(name.hashCode(), partitions);
+    }
+
+    static String topic(final int partition) {
+        return TOPIC_PREFIX + partition;
+    }
+
+    @Activate
+    protected void activate(final BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    @Deactivate
+    protected synchronized void deactivate() {
+        unregister();
+        bundleContext = null;
+    }
+
+    @Override
+    public void handleTopologyEvent(final TopologyEvent event) {
+        switch (event.getType()) {
+            case TOPOLOGY_CHANGING:
+                pause();
+                break;
+            case TOPOLOGY_INIT:
+            case TOPOLOGY_CHANGED:
+                final InstanceDescription local = event.getNewView().getLocalInstance();
+                final List<String> members = new ArrayList<>();
+                for (final InstanceDescription instance : local.getClusterView().getInstances()) {
+                    members.add(instance.getSlingId());
+                }
+                Collections.sort(members);
+                assign(members.indexOf(local.getSlingId()), members.size());
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Stops taking partition jobs until the next view assigns the partitions again; jobs already running finish.
+     */
+    private synchronized void pause() {
+        if (registration != null) {
+            LOG.info("Topology is changing, pausing archive partitions {}", assignedTopics);
+        }
+        unregister();
+    }
+
+    /**
+     * Registers this instance for the topics of the partitions {@code index}, {@code index + members},
+     * {@code index + 2 * members} and so on.
+     */
+    private synchronized void assign(final int index, final int members) {
+        if (bundleContext == null || index < 0) {
+            return;
+        }
+        final List<String> topics = new ArrayList<>();
+        for (int partition = index; partition < moveContentScheduler.getPartitions(); partition += members) {
+            topics.add(topic(partition));
+        }
+        if (topics.equals(assignedTopics)) {
+            return;
+        }
+        unregister();
+        assignedTopics = topics;
+        if (!topics.isEmpty()) {
+            final Dictionary<String, Object> properties = new Hashtable<>();
+            properties.put(JobExecutor.PROPERTY_TOPICS, topics.toArray(new String[0]));
+            registration = bundleContext.registerService(JobExecutor.class, this, properties);
+        }
+        LOG.info("Instance {} of {} processes archive partitions {}", index + 1, members, topics);
+    }
+
+    private void unregister() {
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
+        assignedTopics = Collections.emptyList();
+    }
+
+    @Override
+    public JobExecutionResult process(final Job job, final JobExecutionContext context) {
+        final String subtreePath = job.getProperty(PROPERTY_SUBTREE_PATH, String.class);
+        final Calendar targetDate = job.getProperty(PROPERTY_TARGET_DATE, Calendar.class);
+        if (subtreePath == null || targetDate == null) {
+            return context.result().message("Missing subtreePath or targetDate").cancelled();
+        }
+
+        try {
+            final ArchiveBatch batch = moveContentScheduler.archiveSubtree(subtreePath, targetDate.getTime());
+            LOG.info("Archived {} on {}: {}", subtreePath, job.getTopic(), batch.summary());
+            return context.result().message(batch.summary()).succeeded();
+        } catch (LoginException e) {
+            LOG.error("Error getting resource resolver", e);
+            return context.result().message("Error getting resource resolver: " + e.getMessage()).failed();
+        } catch (RepositoryException e) {
+            LOG.error("Error moving content under {}: {}", subtreePath, e.getMessage());
+            return context.result().message("Error moving content: " + e.getMessage()).failed();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import com.google.gson.JsonParseException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+/**
+ * Applies a move plan written by {@link ArchivePlanWriter} through an {@link ArchiveBatch}, reading the
+ * plan line by line so memory does not depend on the plan size. Steps whose source no longer exists are
+ * skipped. A plan is marked with {@code appliedAt} once it has been executed and is not applied twice.
+ */
+public class ArchivePlanExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchivePlanExecutor.class);
+
+    static final String PN_APPLIED_AT = "appliedAt";
+
+    private final ResourceResolver resolver;
+    private final ArchiveBatch batch;
+
+    private int stepsApplied;
+    private int stepsSkipped;
+    private int stepsFailed;
+
+    public ArchivePlanExecutor(final ResourceResolver resolver, final ArchiveBatch batch) {
+        this.resolver = resolver;
+        this.batch = batch;
+    }
+
+    /**
+     * @param planPath  the path of the nt:file holding the plan
+     * @return false if the plan does not exist or was applied before
+     */
+    public boolean apply(final String planPath) throws IOException, RepositoryException {
+        final Resource planContent = resolver.getResource(planPath + "/jcr:content");
+        if (planContent == null) {
+            LOG.warn("No plan found at {}", planPath);
+            return false;
+        }
+        if (planContent.getValueMap().containsKey(PN_APPLIED_AT)) {
+            LOG.info("Plan {} was already applied at {}", planPath, planContent.getValueMap().get(PN_APPLIED_AT, String.class));
+            return false;
+        }
+
+        try (InputStream data = planContent.getValueMap().get("jcr:data", InputStream.class)) {
+            if (data == null) {
+                LOG.warn("Plan at {} has no data", planPath);
+                return false;
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(data, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    apply(line);
+                }
+            }
+        }
+        batch.commit();
+
+        final ModifiableValueMap properties = resolver.getResource(planPath + "/jcr:content").adaptTo(ModifiableValueMap.class);
+        if (properties != null) {
+            properties.put(PN_APPLIED_AT, Calendar.getInstance());
+            resolver.commit();
+        }
+        LOG.info("Applied plan {}: {} steps applied, {} skipped, {} failed", planPath, stepsApplied, stepsSkipped, stepsFailed);
+        return true;
+    }
+
+    public int getStepsApplied() {
+        return stepsApplied;
+    }
+
+    public int getStepsSkipped() {
+        return stepsSkipped;
+    }
+
+    /**
+     * @return the number of steps that were attempted but failed, e.g. a folder move the repository rejected
+     */
+    public int getStepsFailed() {
+        return stepsFailed;
+    }
+
+    private void apply(final String line) throws RepositoryException {
+        final ArchivePlanWriter.Step step;
+        try {
+            step = ArchivePlanWriter.GSON.fromJson(line, ArchivePlanWriter.Step.class);
+        } catch (JsonParseException e) {
+            LOG.error("Skipping invalid plan line: {}", line);
+            stepsSkipped++;
+            return;
+        }
+
+        try {
+            if (ArchivePlanWriter.OP_MOVE.equals(step.op)) {
+                if (resolver.getResource(step.path) == null) {
+                    stepsSkipped++;
+                    return;
+                }
+                batch.ensureFolder(resolver, step.dest.substring(0, step.dest.lastIndexOf('/')));
+                if (ArchivePlanWriter.SCOPE_FOLDER.equals(step.scope)) {
+                    if (!batch.moveFolder(resolver, step.path, step.dest)) {
+                        stepsFailed++;
+                        return;
+                    }
+                } else if (resolver.getResource(step.dest) != null || !batch.move(step.path, step.dest)) {
+                    // the node at the destination or the page itself is too large to stage, see ArchiveBatch
+                    stepsSkipped++;
+                    return;
+                }
+            } else if (ArchivePlanWriter.OP_DELETE.equals(step.op)) {
+                final Resource resource = resolver.getResource(step.path);
+                if (resource == null) {
+                    stepsSkipped++;
+                    return;
+                }
+                if (!batch.delete(resolver, resource)) {
+                    stepsSkipped++;
+                    return;
+                }
+            } else if (ArchivePlanWriter.OP_CLEANUP.equals(step.op)) {
+                if (resolver.getResource(step.path) == null) {
+                    stepsSkipped++;
+                    return;
+                }
+                batch.deleteLater(resolver, step.path);
+            } else if (ArchivePlanWriter.OP_CREATE.equals(step.op)) {
+                batch.ensureFolder(resolver, step.path);
+            } else {
+                LOG.error("Skipping unknown plan step: {}", line);
+                stepsSkipped++;
+                return;
+            }
+            stepsApplied++;
+        } catch (PersistenceException e) {
+            LOG.error("Failed to apply plan step {}: {}", line, e.getMessage());
+            stepsFailed++;
+        }
+    }
+}
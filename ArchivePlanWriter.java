@@ -0,0 +1,126 @@
+import com.google.gson.Gson;
+import org.apache.jackrabbit.commons.JcrUtils;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Records the steps of an archive run as a move plan instead of applying them. Steps are streamed as
+ * NDJSON (one {@link Step} per line) to a temporary file while the tree is evaluated, and the file is
+ * stored as an nt:file under {@link #PLANS_PATH} once the walk is done. {@link ArchivePlanExecutor}
+ * applies a stored plan without evaluating the tree again.
+ */
+public class ArchivePlanWriter implements Closeable {
+
+    static final String PLANS_PATH = ArchiveCursor.VAR_ROOT + "/plans";
+    static final String MIME_TYPE = "application/x-ndjson";
+
+    static final String OP_MOVE = "move";
+    static final String OP_DELETE = "delete";
+    static final String OP_CREATE = "create";
+    static final String OP_CLEANUP = "cleanup";
+
+    static final String SCOPE_PAGE = "page";
+    static final String SCOPE_FOLDER = "folder";
+
+    /** One line of a plan. */
+    static class Step {
+        String op;
+        String path;
+        String dest;
+        String scope;
+
+        Step() {
+        }
+
+        Step(final String op, final String path, final String dest, final String scope) {
+            this.op = op;
+            this.path = path;
+            this.dest = dest;
+            this.scope = scope;
+        }
+    }
+
+    static final Gson GSON = new Gson();
+
+    private final Path file;
+    private final BufferedWriter writer;
+    private int steps;
+
+    public ArchivePlanWriter() throws IOException {
+        file = Files.createTempFile("archive-plan-", ".ndjson");
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    public void move(final String srcAbsPath, final String destAbsPath, final String scope) throws IOException {
+        write(new Step(OP_MOVE, srcAbsPath, destAbsPath, scope));
+    }
+
+    public void delete(final String path) throws IOException {
+        write(new Step(OP_DELETE, path, null, null));
+    }
+
+    /**
+     * Records a delete that is queued for {@link ArchiveCleanupWorker} instead of applied in the run.
+     */
+    public void cleanup(final String path) throws IOException {
+        write(new Step(OP_CLEANUP, path, null, null));
+    }
+
+    public void create(final String path) throws IOException {
+        write(new Step(OP_CREATE, path, null, null));
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * Closes the plan and stores it in the repository.
+     *
+     * @return the path of the stored plan
+     */
+    public String store(final Session session) throws IOException, RepositoryException {
+        close();
+        final String name = "plan-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".ndjson";
+        final Node plans = JcrUtils.getOrCreateByPath(PLANS_PATH, "sling:Folder", session);
+        try (InputStream data = Files.newInputStream(file)) {
+            final Node plan = JcrUtils.putFile(plans, name, MIME_TYPE, data);
+            session.save();
+            return plan.getPath();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Removes the temporary file; the plan can no longer be stored afterwards.
+     */
+    public void discard() {
+        try {
+            close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // best effort, the file lives in the temp directory
+        }
+    }
+
+    private void write(final Step step) throws IOException {
+        writer.write(GSON.toJson(step));
+        writer.newLine();
+        steps++;
+    }
+}
@@ -0,0 +1,125 @@
+import com.google.gson.JsonObject;
+
+import java.io.PrintWriter;
+
+/**
+ * Streams the progress of an archive request to the client as it happens instead of collecting it in
+ * memory. Writes plain text lines or, in NDJSON mode, one JSON record per line, and flushes every
+ * {@code flushEvery} records together with a progress record holding the running counters, so the client
+ * (and the dispatcher in front of it) keeps receiving data during long runs.
+ */
+public class ArchiveProgressWriter {
+
+    static final String CONTENT_TYPE_TEXT = "text/plain";
+    static final String CONTENT_TYPE_NDJSON = "application/x-ndjson";
+
+    static final int DEFAULT_FLUSH_EVERY = 50;
+
+    private final PrintWriter writer;
+    private final boolean ndjson;
+    private final int flushEvery;
+
+    private long moved;
+    private long skipped;
+    private long errors;
+    private long records;
+
+    /**
+     * @param writer      the response writer
+     * @param ndjson      true to write JSON records, false for plain text lines
+     * @param flushEvery  the number of records after which the writer is flushed
+     */
+    public ArchiveProgressWriter(final PrintWriter writer, final boolean ndjson, final int flushEvery) {
+        this.writer = writer;
+        this.ndjson = ndjson;
+        this.flushEvery = flushEvery > 0 ? flushEvery : DEFAULT_FLUSH_EVERY;
+    }
+
+    public void moved(final String from, final String to) {
+        moved++;
+        if (ndjson) {
+            final JsonObject record = record("move");
+            record.addProperty("from", from);
+            record.addProperty("to", to);
+            write(record.toString());
+        } else {
+            write("Moving page from " + from + " to " + to);
+        }
+    }
+
+    public void skipped(final String path, final String reason) {
+        skipped++;
+        if (ndjson) {
+            final JsonObject record = record("skip");
+            record.addProperty("path", path);
+            record.addProperty("reason", reason);
+            write(record.toString());
+        } else {
+            write("Skipping page: " + path + " (" + reason + ")");
+        }
+    }
+
+    public void error(final String path, final String message) {
+        errors++;
+        if (ndjson) {
+            final JsonObject record = record("error");
+            record.addProperty("path", path);
+            record.addProperty("message", message);
+            write(record.toString());
+        } else {
+            write(message);
+        }
+    }
+
+    public void info(final String message) {
+        if (ndjson) {
+            final JsonObject record = record("info");
+            record.addProperty("message", message);
+            write(record.toString());
+        } else {
+            write(message);
+        }
+    }
+
+    /**
+     * Writes the final counters and flushes the response.
+     */
+    public void finish(final String summary) {
+        if (ndjson) {
+            final JsonObject record = record("summary");
+            addCounters(record);
+            record.addProperty("summary", summary);
+            writer.println(record.toString());
+        } else {
+            writer.println("Summary: " + summary);
+        }
+        writer.flush();
+    }
+
+    private static JsonObject record(final String type) {
+        final JsonObject record = new JsonObject();
+        record.addProperty("type", type);
+        return record;
+    }
+
+    private void write(final String line) {
+        writer.println(line);
+        records++;
+        if (records % flushEvery == 0) {
+            if (ndjson) {
+                final JsonObject progress = record("progress");
+                addCounters(progress);
+                writer.println(progress.toString());
+            } else {
+                writer.println("Progress: " + moved + " moved, " + skipped + " skipped, " + errors + " errors");
+            }
+            writer.flush();
+        }
+    }
+
+    private void addCounters(final JsonObject record) {
+        record.addProperty("moved", moved);
+        record.addProperty("skipped", skipped);
+        record.addProperty("errors", errors);
+    }
+}
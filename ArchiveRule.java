@@ -0,0 +1,158 @@
+import org.apache.sling.api.resource.ValueMap;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Eligibility check for archiving, compiled once per run and shared by all nodes and workers of that run.
+ * <p>
+ * A node is eligible when its status property (if one is configured) has the expected value and its date
+ * property is before the cutoff. Each property is read once from the {@link ValueMap}. Dates stored as JCR
+ * dates are compared by their millis; dates stored as strings in the canonical UTC form
+ * ({@code 2024-04-11T00:00:00.000Z}) are compared as strings without parsing, other offsets are parsed
+ * with {@link DateTimeFormatter}. Instances are immutable and thread-safe.
+ */
+public final class ArchiveRule {
+
+    /** Outcome of evaluating a node against the rule. */
+    public enum Decision {
+        /** The node is older than the cutoff and should be archived. */
+        ELIGIBLE,
+        /** The node is newer than the cutoff. */
+        NOT_DUE,
+        /** The status property does not have the expected value. */
+        SKIPPED_STATUS,
+        /** The date property is missing and the missing policy keeps the node. */
+        MISSING_DATE,
+        /** The date property could not be read as a date. */
+        INVALID_DATE
+    }
+
+    /** What to do with a node whose status matches but which has no date property. */
+    public enum MissingDatePolicy {
+        KEEP,
+        ARCHIVE
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS[XXX][XX][X]");
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    /** Shape of {@link #UTC_FORMAT}, with {@code d} for a digit and every other character literal. */
+    private static final String UTC_SHAPE = "dddd-dd-ddTdd:dd:dd.dddZ";
+
+    private final String statusProperty;
+    private final String statusValue;
+    private final String dateProperty;
+    private final MissingDatePolicy missingDatePolicy;
+    private final long cutoffMillis;
+    private final String cutoffUtc;
+
+    /**
+     * @param statusProperty     the property that must equal {@code statusValue}, or null to not check a status
+     * @param statusValue        the expected status value
+     * @param dateProperty       the date property compared against the cutoff
+     * @param cutoff             nodes dated before this are eligible
+     * @param missingDatePolicy  what to do with nodes without the date property
+     */
+    public ArchiveRule(final String statusProperty, final String statusValue, final String dateProperty,
+                       final Date cutoff, final MissingDatePolicy missingDatePolicy) {
+        this.statusProperty = statusProperty;
+        this.statusValue = statusValue;
+        this.dateProperty = dateProperty;
+        this.missingDatePolicy = missingDatePolicy;
+        this.cutoffMillis = cutoff.getTime();
+        this.cutoffUtc = UTC_FORMAT.format(cutoff.toInstant());
+    }
+
+    /**
+     * @return the date that lies the given number of months before now
+     */
+    public static Date monthsAgo(final int months) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.MONTH, -months);
+        return calendar.getTime();
+    }
+
+    public Date getCutoff() {
+        return new Date(cutoffMillis);
+    }
+
+    public String getDateProperty() {
+        return dateProperty;
+    }
+
+    /**
+     * Identifies the rule apart from its cutoff, so state derived from one rule is not reused for another.
+     */
+    public String getSignature() {
+        return statusProperty + "=" + statusValue + "," + dateProperty + "," + missingDatePolicy;
+    }
+
+    /**
+     * @return the date property in millis, or -1 if it is missing or cannot be read as a date
+     */
+    public long getDateMillis(final ValueMap properties) {
+        final Object date = properties.get(dateProperty);
+        if (date instanceof Calendar) {
+            return ((Calendar) date).getTimeInMillis();
+        }
+        if (date instanceof String) {
+            try {
+                return OffsetDateTime.parse((String) date, DATE_FORMAT).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    public Decision evaluate(final ValueMap properties) {
+        if (statusProperty != null && !statusValue.equals(properties.get(statusProperty, String.class))) {
+            return Decision.SKIPPED_STATUS;
+        }
+        final Object date = properties.get(dateProperty);
+        if (date == null) {
+            return missingDatePolicy == MissingDatePolicy.ARCHIVE ? Decision.ELIGIBLE : Decision.MISSING_DATE;
+        }
+        if (date instanceof Calendar) {
+            return ((Calendar) date).getTimeInMillis() < cutoffMillis ? Decision.ELIGIBLE : Decision.NOT_DUE;
+        }
+        if (date instanceof String) {
+            return evaluate((String) date);
+        }
+        return Decision.INVALID_DATE;
+    }
+
+    private Decision evaluate(final String date) {
+        if (isCanonicalUtc(date)) {
+            return date.compareTo(cutoffUtc) < 0 ? Decision.ELIGIBLE : Decision.NOT_DUE;
+        }
+        try {
+            final Instant instant = OffsetDateTime.parse(date, DATE_FORMAT).toInstant();
+            return instant.toEpochMilli() < cutoffMillis ? Decision.ELIGIBLE : Decision.NOT_DUE;
+        } catch (DateTimeParseException e) {
+            return Decision.INVALID_DATE;
+        }
+    }
+
+    /**
+     * @return true if the date has exactly the shape of {@link #UTC_FORMAT}, so it orders like the instant it names
+     */
+    private static boolean isCanonicalUtc(final String date) {
+        if (date.length() != UTC_SHAPE.length()) {
+            return false;
+        }
+        for (int i = 0; i < UTC_SHAPE.length(); i++) {
+            final char expected = UTC_SHAPE.charAt(i);
+            final char actual = date.charAt(i);
+            if (expected == 'd' ? actual < '0' || actual > '9' : actual != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+import javax.jcr.RepositoryException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Upper bounds of a single archive run: wall-clock time, nodes scanned and moves performed. Once one of them is
+ * reached the walk stops with an {@link ExhaustedException}; the run commits what it has done so far and the
+ * next trigger continues from the stored cursor. A limit of 0 leaves that dimension unbounded. The walk also
+ * stops once the run's {@link ArchiveRunGuard} lost its lease, since another instance may be running by then.
+ * <p>
+ * One budget is created per run and is used by the run's thread only.
+ */
+public class ArchiveRunBudget {
+
+    /** Nodes scanned between two checks by {@link #scanned(ArchiveBatch)}. */
+    static final int CHECK_INTERVAL = 100;
+
+    /** Thrown by {@link #check} to unwind the walk once the budget is used up; not an error. */
+    static class ExhaustedException extends RepositoryException {
+        ExhaustedException(final String message) {
+            super(message);
+        }
+    }
+
+    private final long maxNanos;
+    private final long maxNodesScanned;
+    private final long maxMoves;
+    private final BooleanSupplier leaseHeld;
+    private final long startNanos = System.nanoTime();
+
+    private long nodesScanned;
+
+    /**
+     * @param maxDurationMillis  wall-clock time after which the run yields, or 0
+     * @param maxNodesScanned    number of evaluated nodes after which the run yields, or 0
+     * @param maxMoves           number of moves after which the run yields, or 0
+     */
+    public ArchiveRunBudget(final long maxDurationMillis, final long maxNodesScanned, final long maxMoves) {
+        this(maxDurationMillis, maxNodesScanned, maxMoves, null);
+    }
+
+    /**
+     * @param maxDurationMillis  wall-clock time after which the run yields, or 0
+     * @param maxNodesScanned    number of evaluated nodes after which the run yields, or 0
+     * @param maxMoves           number of moves after which the run yields, or 0
+     * @param leaseHeld          if not null, the run stops once it answers false, see {@link ArchiveRunGuard#holdsLease()}
+     */
+    public ArchiveRunBudget(final long maxDurationMillis, final long maxNodesScanned, final long maxMoves,
+                            final BooleanSupplier leaseHeld) {
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDurationMillis));
+        this.maxNodesScanned = Math.max(0, maxNodesScanned);
+        this.maxMoves = Math.max(0, maxMoves);
+        this.leaseHeld = leaseHeld;
+    }
+
+    /**
+     * @return true if no limit is set and the run does not depend on a lease
+     */
+    public boolean isUnbounded() {
+        return maxNanos == 0 && maxNodesScanned == 0 && maxMoves == 0 && leaseHeld == null;
+    }
+
+    public void scanned() {
+        nodesScanned++;
+    }
+
+    /**
+     * Counts a scanned node and checks the limits every {@link #CHECK_INTERVAL} nodes, so a walk deep inside a
+     * large subtree still stops in time.
+     */
+    public void scanned(final ArchiveBatch batch) throws ExhaustedException {
+        scanned();
+        if (nodesScanned % CHECK_INTERVAL == 0) {
+            check(batch);
+        }
+    }
+
+    public long getNodesScanned() {
+        return nodesScanned;
+    }
+
+    /**
+     * Stops the walk if one of the limits has been reached by the run of the given batch.
+     */
+    public void check(final ArchiveBatch batch) throws ExhaustedException {
+        if (leaseHeld != null && !leaseHeld.getAsBoolean()) {
+            throw new ExhaustedException("lease lost");
+        }
+        final long elapsed = System.nanoTime() - startNanos;
+        if (maxNanos > 0 && elapsed >= maxNanos) {
+            throw new ExhaustedException("time budget of " + TimeUnit.NANOSECONDS.toMillis(maxNanos) + " ms used up");
+        }
+        if (maxNodesScanned > 0 && nodesScanned >= maxNodesScanned) {
+            throw new ExhaustedException(nodesScanned + " nodes scanned");
+        }
+        if (maxMoves > 0 && batch.getMovesPerformed() >= maxMoves) {
+            throw new ExhaustedException(batch.getMovesPerformed() + " moves performed");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets at most one run of an archive component be active in the cluster. Within the instance, triggers that
+ * arrive while a run is in progress are coalesced into a single follow-up run once it finishes. Across
+ * instances, a run only starts while the instance holds the component's {@link ArchiveLease}. A trigger that
+ * finds the lease held by another instance is dropped, since that instance's run covers the same tree.
+ * <p>
+ * The lease is kept across runs, so a component triggered every few seconds does not take and give up the lease
+ * (two commits) on every trigger. One executor per guard renews it every third of its duration and releases it
+ * once no run used it for a whole lease duration, so another instance can take over when this one stops
+ * running the component. If a renewal fails, {@link #holdsLease()} turns false and the run is expected to stop.
+ * The owning component calls {@link #close()} on deactivation.
+ */
+public class ArchiveRunGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveRunGuard.class);
+
+    private final ResourceResolverFactory resourceResolverFactory;
+    private final String serviceUser;
+    private final String leasePath;
+    private final String owner;
+    private final long leaseMillis;
+    private final ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean rerunRequested = new AtomicBoolean();
+
+    /** Resolver and lease shared by the runs and the renewal, guarded by this. */
+    private ResourceResolver leaseResolver;
+    private ArchiveLease lease;
+    private volatile boolean leaseHeld;
+    private volatile long lastUsedMillis;
+
+    /**
+     * @param serviceUser  the sub service the lease is written with
+     * @param leasePath    the path of the component's lease
+     * @param owner        identifies this instance, e.g. its Sling id
+     * @param leaseMillis  the duration of the lease
+     */
+    public ArchiveRunGuard(final ResourceResolverFactory resourceResolverFactory, final String serviceUser,
+                           final String leasePath, final String owner, final long leaseMillis) {
+        this.resourceResolverFactory = resourceResolverFactory;
+        this.serviceUser = serviceUser;
+        this.leasePath = leasePath;
+        this.owner = owner;
+        this.leaseMillis = leaseMillis;
+        final long period = Math.max(1, leaseMillis / 3);
+        renewal.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the task on the calling thread, or records a follow-up run if a run is already in progress.
+     */
+    public void run(final Runnable task) {
+        rerunRequested.set(true);
+        while (rerunRequested.get() && running.compareAndSet(false, true)) {
+            try {
+                while (rerunRequested.getAndSet(false)) {
+                    runLeased(task);
+                }
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return false once the lease was lost during a run; the run should stop as soon as it can
+     */
+    public boolean holdsLease() {
+        return leaseHeld;
+    }
+
+    /**
+     * Stops the renewal and gives the lease up.
+     */
+    public synchronized void close() {
+        renewal.shutdownNow();
+        if (leaseHeld) {
+            lease.release();
+            leaseHeld = false;
+        }
+        if (leaseResolver != null) {
+            leaseResolver.close();
+            leaseResolver = null;
+        }
+    }
+
+    private void runLeased(final Runnable task) {
+        if (!acquire()) {
+            return;
+        }
+        try {
+            task.run();
+        } finally {
+            lastUsedMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return true if this instance holds the lease, either from an earlier run or taken now
+     */
+    private synchronized boolean acquire() {
+        lastUsedMillis = System.currentTimeMillis();
+        if (leaseHeld) {
+            return true;
+        }
+        try {
+            if (leaseResolver == null) {
+                final Map<String, Object> param = new HashMap<>();
+                param.put(ResourceResolverFactory.SUBSERVICE, serviceUser);
+                leaseResolver = resourceResolverFactory.getServiceResourceResolver(param);
+                lease = new ArchiveLease(leaseResolver, leasePath, owner, leaseMillis);
+            }
+        } catch (LoginException e) {
+            LOG.error("Error obtaining resource resolver for lease {}", leasePath, e);
+            return false;
+        }
+        if (!lease.acquire()) {
+            LOG.info("Lease {} is held by {}, skipping run", leasePath, lease.getHolder());
+            return false;
+        }
+        leaseHeld = true;
+        return true;
+    }
+
+    /**
+     * Extends the lease while runs use it, and releases it once it has been idle for a lease duration.
+     */
+    private synchronized void renew() {
+        if (!leaseHeld) {
+            return;
+        }
+        if (!running.get() && System.currentTimeMillis() - lastUsedMillis >= leaseMillis) {
+            LOG.debug("Releasing idle lease {}", leasePath);
+            lease.release();
+            leaseHeld = false;
+        } else if (!lease.renew()) {
+            LOG.error("Lost lease {}, stopping the run in progress", leasePath);
+            leaseHeld = false;
+        }
+    }
+}
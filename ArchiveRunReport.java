@@ -0,0 +1,40 @@
+/**
+ * Merged outcome of an archive run that was split over several workers, each with its own
+ * {@link ArchiveBatch}.
+ */
+public class ArchiveRunReport {
+
+    private int subtreesProcessed;
+    private int subtreesFailed;
+    private int batchesCommitted;
+    private int batchesFailed;
+    private int movesCommitted;
+    private int skipped;
+
+    public synchronized void add(final ArchiveBatch batch) {
+        subtreesProcessed++;
+        batchesCommitted += batch.getBatchesCommitted();
+        batchesFailed += batch.getBatchesFailed();
+        movesCommitted += batch.getMovesCommitted();
+        skipped += batch.getSkipped();
+    }
+
+    public synchronized void addFailure() {
+        subtreesFailed++;
+    }
+
+    public synchronized boolean isSuccessful() {
+        return subtreesFailed == 0 && batchesFailed == 0;
+    }
+
+    public synchronized int getMovesCommitted() {
+        return movesCommitted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return subtreesProcessed + " subtrees processed, " + subtreesFailed + " subtrees failed, "
+                + batchesCommitted + " batches committed (" + movesCommitted + " moves), "
+                + batchesFailed + " batches failed, " + skipped + " nodes skipped";
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the batch size and a pause between batches to the save latency the archive run itself observes, so a
+ * large run yields to authors when the repository is busy and drains at full speed when it is idle. A save
+ * slower than the target latency halves the batch size and doubles the pause; a save faster than half the target
+ * grows the batch size by a tenth of the configured size and halves the pause. Time spent waiting in the Oak
+ * commit queue is part of the save latency, so a growing queue slows the run down as well.
+ * <p>
+ * One throttle is shared by all batches and workers of a component and is thread-safe.
+ */
+public class ArchiveThrottle {
+
+    private final int maxBatchSize;
+    private final int minBatchSize;
+    private final int step;
+    private final long targetLatencyNanos;
+    private final long maxPauseMillis;
+
+    private int batchSize;
+    private long pauseMillis;
+
+    /**
+     * @param maxBatchSize         the configured batch size, which is also the largest batch the throttle allows
+     * @param targetLatencyMillis  the save latency above which the run backs off
+     * @param maxPauseMillis       the longest pause inserted after a save
+     */
+    public ArchiveThrottle(final int maxBatchSize, final long targetLatencyMillis, final long maxPauseMillis) {
+        this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : ArchiveBatch.DEFAULT_BATCH_SIZE;
+        this.minBatchSize = Math.max(1, this.maxBatchSize / 50);
+        this.step = Math.max(1, this.maxBatchSize / 10);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.maxPauseMillis = maxPauseMillis;
+        this.batchSize = this.maxBatchSize;
+    }
+
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    public synchronized long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    /**
+     * Adjusts batch size and pause to the latency of a save.
+     */
+    public synchronized void saved(final long latencyNanos) {
+        if (latencyNanos > targetLatencyNanos) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            pauseMillis = Math.min(maxPauseMillis, pauseMillis > 0 ? pauseMillis * 2 : TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        } else if (latencyNanos < targetLatencyNanos / 2) {
+            batchSize = Math.min(maxBatchSize, batchSize + step);
+            pauseMillis = pauseMillis / 2;
+        }
+    }
+
+    /**
+     * Sleeps for the current pause, if any.
+     */
+    public void pause() {
+        final long pause = getPauseMillis();
+        if (pause <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "throttled batch size " + batchSize + ", pause " + pauseMillis + " ms";
+    }
+}
@@ -1,21 +1,42 @@
 
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.metrics.MetricsService;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 @Component(
         service = Job.class,
@@ -24,17 +45,99 @@ import java.util.Map;
                 "scheduler.concurrent=false"
         }
 )
+@Designate(ocd = MoveContentJob.Config.class)
 public class MoveContentJob implements Job {
 
+    @ObjectClassDefinition(name = "Move Content Job")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Selection mode",
+                description = "traversal walks every page under the base path, query asks the index for pages past the target date only, "
+                        + "incremental evaluates only the pages recorded by the change listener after one catch-up walk")
+        String selection_mode() default SELECTION_MODE_TRAVERSAL;
+
+        @AttributeDefinition(
+                name = "Batch size",
+                description = "Number of moves saved per commit")
+        int batch_size() default ArchiveBatch.DEFAULT_BATCH_SIZE;
+
+        @AttributeDefinition(
+                name = "Lease duration",
+                description = "Minutes the cluster-wide run lease stays valid without renewal, after which another instance may take it over")
+        int lease_duration_minutes() default 30;
+
+        @AttributeDefinition(
+                name = "Skip log sample rate",
+                description = "Every how many skipped pages of the same reason one is logged at debug level; the run summary "
+                        + "counts all of them, and the moves made are written to the archive audit journal")
+        int skip_log_sample_rate() default 1000;
+    }
+
+    static final String SELECTION_MODE_TRAVERSAL = "traversal";
+    static final String SELECTION_MODE_QUERY = "query";
+    static final String SELECTION_MODE_INCREMENTAL = "incremental";
+    static final String ARCHIVE_INDEX_PATH = ArchiveIndex.PATH;
+
+    static final String BASE_PATH = "/content/projects";
+    static final String CANDIDATES_PATH = ArchiveCursor.VAR_ROOT + "/job/candidates";
+    static final String LEASE_PATH = ArchiveCursor.VAR_ROOT + "/job/lease";
+
     private static final Logger LOG = LoggerFactory.getLogger(MoveContentJob.class);
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
 
     @Reference
     private ResourceResolverFactory resourceResolverFactory;
 
+    @Reference
+    private MetricsService metricsService;
+
+    @Reference
+    private SlingSettingsService slingSettingsService;
+
+    @Reference
+    private ArchiveAuditJournal journal;
+
+    private String selectionMode = SELECTION_MODE_TRAVERSAL;
+    private int batchSize = ArchiveBatch.DEFAULT_BATCH_SIZE;
+    private int skipLogSampleRate = 1000;
+
+    /** Set once the full walk that picks up pages changed while the listener was not running has completed. */
+    private volatile boolean catchUpDone;
+
+    private ArchiveRunGuard runGuard;
+    private ArchiveMetrics metrics;
+    private ServiceRegistration<DynamicMBean> metricsRegistration;
+
+    @Activate
+    protected void activate(Config config, BundleContext bundleContext) throws NotCompliantMBeanException {
+        metrics = new ArchiveMetrics(metricsService, "job");
+        metricsRegistration = metrics.register(bundleContext);
+        selectionMode = config.selection_mode();
+        batchSize = config.batch_size();
+        skipLogSampleRate = Math.max(1, config.skip_log_sample_rate());
+        catchUpDone = false;
+        runGuard = new ArchiveRunGuard(resourceResolverFactory, "dataMoverServiceUser", LEASE_PATH,
+                slingSettingsService.getSlingId(), TimeUnit.MINUTES.toMillis(Math.max(1, config.lease_duration_minutes())));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        runGuard.close();
+        metricsRegistration.unregister();
+    }
+
+    /**
+     * Runs the move unless another instance holds the lease; triggers during a run are coalesced into one follow-up run.
+     */
     @Override
     public void execute(JobContext context) {
-        String basePath = "/content/projects";
+        runGuard.run(this::moveContent);
+    }
+
+    private void moveContent() {
+        long runStart = System.nanoTime();
+        String basePath = BASE_PATH;
         String targetPath = "/content/site/us/en";
         String targetDateString = new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "T00:00:00.000Z";
         Date targetDate;
@@ -53,13 +156,48 @@ public class MoveContentJob implements Job {
             Session session = resolver.adaptTo(Session.class);
             Resource baseResource = resolver.getResource(basePath);
 
+            if (SELECTION_MODE_QUERY.equals(selectionMode) && !ArchiveIndex.isReady(resolver)) {
+                LOG.warn("Index {} is missing, disabled or still reindexing, skipping query mode run", ARCHIVE_INDEX_PATH);
+                return;
+            }
+
             if (baseResource != null) {
+                ArchiveBatch batch = new ArchiveBatch(session, batchSize, null, null, journal);
+                // no limits of its own, only stops the run once the lease is lost
+                ArchiveRunBudget budget = new ArchiveRunBudget(0, 0, 0, runGuard::holdsLease);
+                boolean completed = false;
                 try {
-                    movePages(baseResource, resolver, session, targetPath, targetDate);
-                    session.save();
-                    LOG.info("Content moved successfully from {} to {}", basePath, targetPath);
+                    boolean stopped = false;
+                    try {
+                        if (SELECTION_MODE_QUERY.equals(selectionMode)) {
+                            movePagesFromQuery(baseResource, resolver, batch, budget, targetPath, targetDate);
+                        } else if (SELECTION_MODE_INCREMENTAL.equals(selectionMode) && catchUpDone) {
+                            movePagesFromCandidates(basePath, resolver, batch, budget, targetPath, targetDate);
+                        } else {
+                            // the catch-up walk of the incremental mode records the pages that are not due yet,
+                            // which the change listener would otherwise only see once they are edited again
+                            ArchiveCandidateStore candidates = SELECTION_MODE_INCREMENTAL.equals(selectionMode)
+                                    ? new ArchiveCandidateStore(resolver, CANDIDATES_PATH) : null;
+                            movePages(baseResource, resolver, batch, budget, candidates, targetPath, compileRule(targetDate));
+                        }
+                    } catch (ArchiveRunBudget.ExhaustedException e) {
+                        stopped = true;
+                        LOG.warn("Run stopped ({}), leaving the rest to the instance holding the lease", e.getMessage());
+                    }
+                    batch.commit();
+                    completed = true;
+                    if (!stopped) {
+                        catchUpDone = true;
+                        LOG.info("Content moved successfully from {} to {}", basePath, targetPath);
+                    }
                 } catch (RepositoryException e) {
                     LOG.error("Error moving content: {}", e.getMessage(), e);
+                } catch (PersistenceException e) {
+                    LOG.error("Error updating archive candidates: {}", e.getMessage(), e);
+                } finally {
+                    metrics.record(batch);
+                    metrics.runFinished(System.nanoTime() - runStart, completed && batch.getBatchesFailed() == 0);
+                    LOG.info("Archive run summary: {}", batch.summary());
                 }
             } else {
                 LOG.warn("No resource found at {}", basePath);
@@ -69,38 +207,152 @@ public class MoveContentJob implements Job {
         }
     }
 
-    private void movePages(Resource resource, ResourceResolver resolver, Session session, String targetPath, Date targetDate) throws RepositoryException {
+    /**
+     * Walks the tree below the given resource and moves the pages past the target date. Pages that are not due
+     * yet are added to the candidates with their publish date, unless the candidates are null.
+     */
+    private void movePages(Resource resource, ResourceResolver resolver, ArchiveBatch batch, ArchiveRunBudget budget,
+                           ArchiveCandidateStore candidates, String targetPath, ArchiveRule rule)
+            throws RepositoryException, PersistenceException {
         for (Resource child : resource.getChildren()) {
+            budget.check(batch);
             Resource contentResource = child.getChild("jcr:content");
             if (contentResource != null) {
-                String newsPublishDateStr = contentResource.getValueMap().get("newsPublishDate", String.class);
+                metrics.nodeScanned();
+                ValueMap properties = contentResource.getValueMap();
+                ArchiveRule.Decision decision = rule.evaluate(properties);
+                switch (decision) {
+                    case ELIGIBLE:
+                        String currentPath = child.getPath();
+                        String newPath = targetPath + "/" + child.getName();
 
-                if (newsPublishDateStr != null) {
-                    try {
-                        Date newsPublishDate = DATE_FORMAT.parse(newsPublishDateStr);
-                        if (newsPublishDate.before(targetDate)) {
-                            String currentPath = child.getPath();
-                            String newPath = targetPath + "/" + child.getName();
-
-                            LOG.info("Moving page from {} to {}", currentPath, newPath);
-
-                            try {
-                                session.move(currentPath, newPath);
-                            } catch (RepositoryException e) {
-                                LOG.error("Failed to move content at path: {}. Error: {}", currentPath, e.getMessage(), e);
-                            }
-                        } else {
-                            LOG.info("Skipping page: {} (newsPublishDate is newer than the target date)", child.getPath());
+                        LOG.debug("Moving page from {} to {}", currentPath, newPath);
+
+                        try {
+                            batch.move(currentPath, newPath);
+                        } catch (RepositoryException e) {
+                            LOG.error("Failed to move content at path: {}. Error: {}", currentPath, e.getMessage(), e);
                         }
-                    } catch (ParseException e) {
-                        LOG.error("Failed to parse newsPublishDate for resource {}: {}", child.getPath(), e.getMessage(), e);
-                    }
-                } else {
-                    LOG.warn("No newsPublishDate found for resource {}", child.getPath());
+                        break;
+                    case NOT_DUE:
+                        if (candidates != null) {
+                            Calendar publishDate = Calendar.getInstance();
+                            publishDate.setTimeInMillis(rule.getDateMillis(properties));
+                            candidates.add(child.getPath(), publishDate);
+                        }
+                        skipped(batch, child.getPath(), decision, rule);
+                        break;
+                    case INVALID_DATE:
+                        metrics.parseFailure();
+                        skipped(batch, child.getPath(), decision, rule);
+                        break;
+                    default:
+                        skipped(batch, child.getPath(), decision, rule);
+                }
+            }
+
+            movePages(child, resolver, batch, budget, candidates, targetPath + "/" + child.getName(), rule);
+        }
+    }
+
+    /**
+     * Moves the pages whose jcr:content has a newsPublishDate before the target date, as found by the index,
+     * to the same relative location under the target path as {@link #movePages} would.
+     */
+    private void movePagesFromQuery(Resource baseResource, ResourceResolver resolver, ArchiveBatch batch, ArchiveRunBudget budget,
+                                    String targetPath, Date targetDate) throws RepositoryException {
+        String basePath = baseResource.getPath();
+        Calendar cutoff = Calendar.getInstance();
+        cutoff.setTime(targetDate);
+        String query = "SELECT * FROM [nt:base] AS c"
+                + " WHERE ISDESCENDANTNODE(c, '" + basePath + "')"
+                + " AND NAME(c) = 'jcr:content'"
+                + " AND c.[newsPublishDate] < CAST('" + ISO8601.format(cutoff) + "' AS DATE)";
+
+        TreeSet<String> pagePaths = new TreeSet<>();
+        Iterator<Resource> results = resolver.findResources(query, Query.JCR_SQL2);
+        while (results.hasNext()) {
+            Resource page = results.next().getParent();
+            if (page != null) {
+                pagePaths.add(page.getPath());
+            }
+        }
+        LOG.info("Query found {} pages to move under {}", pagePaths.size(), basePath);
+
+        // Sorted order visits parents first; a moved page takes its descendants along.
+        List<String> movedPaths = new ArrayList<>();
+        for (String currentPath : pagePaths) {
+            budget.check(batch);
+            if (isWithinAny(currentPath, movedPaths)) {
+                continue;
+            }
+            String newPath = targetPath + currentPath.substring(basePath.length());
+
+            LOG.debug("Moving page from {} to {}", currentPath, newPath);
+
+            try {
+                batch.move(currentPath, newPath);
+                movedPaths.add(currentPath);
+            } catch (RepositoryException e) {
+                LOG.error("Failed to move content at path: {}. Error: {}", currentPath, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Counts a page left in place for the run summary and logs every {@code skip.log.sample.rate}th one per
+     * reason at debug level, starting with the first.
+     */
+    private void skipped(ArchiveBatch batch, String path, ArchiveRule.Decision decision, ArchiveRule rule) {
+        int count = batch.skipped(decision);
+        if (LOG.isDebugEnabled() && (count - 1) % skipLogSampleRate == 0) {
+            LOG.debug("Skipping page: {} ({} on {}, {} so far)", path, decision, rule.getDateProperty(), count);
+        }
+    }
+
+    private ArchiveRule compileRule(Date targetDate) {
+        return new ArchiveRule(null, null, "newsPublishDate", targetDate, ArchiveRule.MissingDatePolicy.KEEP);
+    }
+
+    /**
+     * Moves the pages recorded by {@link ArchiveCandidateListener} whose newsPublishDate is before the
+     * target date, and drops candidates that were moved or no longer exist. Candidates that are not due
+     * yet or failed to move stay in the set for a later run.
+     */
+    private void movePagesFromCandidates(String basePath, ResourceResolver resolver, ArchiveBatch batch, ArchiveRunBudget budget,
+                                         String targetPath, Date targetDate) throws RepositoryException, PersistenceException {
+        ArchiveCandidateStore store = new ArchiveCandidateStore(resolver, CANDIDATES_PATH);
+        for (Map.Entry<String, Calendar> candidate : store.list().entrySet()) {
+            budget.check(batch);
+            String currentPath = candidate.getKey();
+            if (resolver.getResource(currentPath) == null || !currentPath.startsWith(basePath + "/")) {
+                store.remove(currentPath);
+                continue;
+            }
+            if (!candidate.getValue().getTime().before(targetDate)) {
+                continue;
+            }
+            String newPath = targetPath + currentPath.substring(basePath.length());
+
+            LOG.debug("Moving page from {} to {}", currentPath, newPath);
+
+            try {
+                if (batch.move(currentPath, newPath)) {
+                    store.remove(currentPath);
                 }
+            } catch (RepositoryException e) {
+                // the candidate stays in the store and is retried by the next run
+                LOG.error("Failed to move content at path: {}. Error: {}", currentPath, e.getMessage(), e);
             }
+        }
+    }
 
-            movePages(child, resolver, session, targetPath + "/" + child.getName(), targetDate);
+    private static boolean isWithinAny(String path, List<String> ancestorPaths) {
+        for (String ancestorPath : ancestorPaths) {
+            if (path.startsWith(ancestorPath + "/")) {
+                return true;
+            }
         }
+        return false;
     }
 }
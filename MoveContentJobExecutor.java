@@ -0,0 +1,207 @@
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutionResult;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the moves submitted through {@link MoveContentServlet} as a Sling job, so they no longer hold a
+ * request thread. Progress is reported per top level child of the base path through the job's progress
+ * steps and ETA, and in the job log for every tenth of the children; the final summary becomes the job's
+ * result message. A job with a plan path applies that stored plan instead of evaluating the tree, and a job in
+ * plan mode writes the moves to a plan under /var and reports its path instead of making them. The servlet only submits jobs for callers allowed to move the
+ * content themselves and records who submitted them.
+ */
+@Component(
+        service = JobExecutor.class,
+        property = {
+                JobExecutor.PROPERTY_TOPICS + "=" + MoveContentJobExecutor.TOPIC
+        }
+)
+public class MoveContentJobExecutor implements JobExecutor {
+
+    static final String TOPIC = "site/archive/moveData";
+
+    static final String PROPERTY_TARGET_DATE = "targetDate";
+    static final String PROPERTY_BASE_PATH = "basePath";
+    static final String PROPERTY_TARGET_PATH = "targetPath";
+    static final String PROPERTY_BATCH_SIZE = "batchSize";
+    static final String PROPERTY_PLAN_PATH = "planPath";
+    static final String PROPERTY_MODE = "mode";
+    static final String PROPERTY_SUBMITTED_BY = "submittedBy";
+
+    static final String MODE_PLAN = "plan";
+
+    /** Number of progress lines written to the job log over a whole job. */
+    private static final int PROGRESS_LOG_LINES = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MoveContentJobExecutor.class);
+
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    /** Running totals of one job. */
+    private static class Counters {
+        int moved;
+        int skipped;
+        int errors;
+
+        @Override
+        public String toString() {
+            return moved + " moved, " + skipped + " skipped, " + errors + " errors";
+        }
+    }
+
+    @Override
+    public JobExecutionResult process(Job job, JobExecutionContext context) {
+        String planPath = job.getProperty(PROPERTY_PLAN_PATH, String.class);
+        if (planPath != null) {
+            return applyPlan(job, planPath, context);
+        }
+
+        Calendar targetDate = job.getProperty(PROPERTY_TARGET_DATE, Calendar.class);
+        String basePath = job.getProperty(PROPERTY_BASE_PATH, String.class);
+        String targetPath = job.getProperty(PROPERTY_TARGET_PATH, String.class);
+        int batchSize = job.getProperty(PROPERTY_BATCH_SIZE, ArchiveBatch.DEFAULT_BATCH_SIZE);
+        boolean planOnly = MODE_PLAN.equals(job.getProperty(PROPERTY_MODE, String.class));
+        LOG.info("Job {} submitted by {}", job.getId(), job.getProperty(PROPERTY_SUBMITTED_BY, String.class));
+
+        if (targetDate == null || basePath == null || targetPath == null) {
+            return context.result().message("Missing targetDate, basePath or targetPath").cancelled();
+        }
+
+        Map<String, Object> param = new HashMap<>();
+        param.put(ResourceResolverFactory.SUBSERVICE, "dataMoverServiceUser");
+
+        ArchivePlanWriter plan = null;
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
+            Session session = resolver.adaptTo(Session.class);
+            Resource baseResource = resolver.getResource(basePath);
+            if (baseResource == null) {
+                return context.result().message("No resource found at " + basePath).failed();
+            }
+
+            List<Resource> children = new ArrayList<>();
+            for (Resource child : baseResource.getChildren()) {
+                children.add(child);
+            }
+            context.initProgress(children.size(), -1);
+
+            ArchiveRule rule = new ArchiveRule(null, null, "newsPublishDate", targetDate.getTime(), ArchiveRule.MissingDatePolicy.KEEP);
+            if (planOnly) {
+                plan = new ArchivePlanWriter();
+            }
+            ArchiveBatch batch = plan != null ? new ArchiveBatch(session, batchSize, plan) : new ArchiveBatch(session, batchSize);
+            Counters counters = new Counters();
+            long start = System.currentTimeMillis();
+            // the job log is kept with the job, so it gets a line per tenth of the children instead of one per child
+            int logInterval = Math.max(1, children.size() / PROGRESS_LOG_LINES);
+
+            for (int i = 0; i < children.size(); i++) {
+                if (context.isStopped()) {
+                    batch.commit();
+                    return context.result().message("Stopped: " + counters + ", " + batch.summary()).cancelled();
+                }
+                movePage(children.get(i), resolver, batch, targetPath, rule, counters);
+
+                int done = i + 1;
+                long elapsedSeconds = (System.currentTimeMillis() - start) / 1000;
+                context.incrementProgressCount(1);
+                context.updateProgress(elapsedSeconds * (children.size() - done) / done);
+                LOG.debug("Job {}: done with {} ({} of {}), {}", job.getId(), children.get(i).getPath(), done, children.size(), counters);
+                if (done % logInterval == 0 || done == children.size()) {
+                    context.log("Progress: {0} of {1} done, {2}", done, children.size(), counters.toString());
+                }
+            }
+
+            batch.commit();
+            String summary = "Content moved from " + basePath + " to " + targetPath + ": " + counters + ", " + batch.summary();
+            if (plan != null) {
+                summary = "Plan written to " + plan.store(session) + " for " + basePath + ": " + counters + ", " + batch.summary();
+            }
+            LOG.info("Job {}: {}", job.getId(), summary);
+            return context.result().message(summary).succeeded();
+        } catch (LoginException e) {
+            LOG.error("Error getting resource resolver", e);
+            return context.result().message("Error getting resource resolver: " + e.getMessage()).failed();
+        } catch (IOException | RepositoryException e) {
+            LOG.error("Error moving content for job {}", job.getId(), e);
+            return context.result().message("Error moving content: " + e.getMessage()).failed();
+        } finally {
+            if (plan != null) {
+                plan.discard();
+            }
+        }
+    }
+
+    private JobExecutionResult applyPlan(Job job, String planPath, JobExecutionContext context) {
+        Map<String, Object> param = new HashMap<>();
+        param.put(ResourceResolverFactory.SUBSERVICE, "dataMoverServiceUser");
+
+        try (ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
+            ArchiveBatch batch = new ArchiveBatch(resolver.adaptTo(Session.class), ArchiveBatch.DEFAULT_BATCH_SIZE);
+            ArchivePlanExecutor executor = new ArchivePlanExecutor(resolver, batch);
+            if (!executor.apply(planPath)) {
+                return context.result().message("Plan " + planPath + " does not exist or was already applied").cancelled();
+            }
+            String summary = "Applied plan " + planPath + ": " + executor.getStepsApplied() + " steps applied, "
+                    + executor.getStepsSkipped() + " skipped, " + executor.getStepsFailed() + " failed, " + batch.summary();
+            LOG.info("Job {}: {}", job.getId(), summary);
+            return context.result().message(summary).succeeded();
+        } catch (LoginException e) {
+            LOG.error("Error getting resource resolver", e);
+            return context.result().message("Error getting resource resolver: " + e.getMessage()).failed();
+        } catch (IOException | RepositoryException e) {
+            LOG.error("Error applying plan {} for job {}", planPath, job.getId(), e);
+            return context.result().message("Error applying plan: " + e.getMessage()).failed();
+        }
+    }
+
+    private void movePage(Resource child, ResourceResolver resolver, ArchiveBatch batch, String targetPath, ArchiveRule rule, Counters counters) throws RepositoryException {
+        Resource contentResource = child.getChild("jcr:content");
+        if (contentResource != null) {
+            switch (rule.evaluate(contentResource.getValueMap())) {
+                case ELIGIBLE:
+                    String currentPath = child.getPath();
+                    String newPath = targetPath + "/" + child.getName();
+
+                    LOG.debug("Moving page from {} to {}", currentPath, newPath);
+
+                    try {
+                        batch.move(currentPath, newPath);
+                        counters.moved++;
+                    } catch (RepositoryException e) {
+                        counters.errors++;
+                        LOG.error("Failed to move content at path: {}. Error: {}", currentPath, e.getMessage());
+                    }
+                    break;
+                case INVALID_DATE:
+                    counters.errors++;
+                    LOG.error("Failed to parse newsPublishDate for resource {}", child.getPath());
+                    break;
+                default:
+                    counters.skipped++;
+            }
+        }
+
+        for (Resource grandChild : child.getChildren()) {
+            movePage(grandChild, resolver, batch, targetPath + "/" + child.getName(), rule, counters);
+        }
+    }
+}
@@ -3,18 +3,22 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import com.google.gson.JsonObject;
+import org.apache.jackrabbit.util.ISO8601;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.osgi.service.component.annotations.Component;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import org.osgi.service.component.annotations.Reference;
 @Component(
         service = {javax.servlet.Servlet.class},
         property = {
@@ -23,36 +27,221 @@ import org.slf4j.LoggerFactory;
 )
 public class MoveContentServlet extends SlingAllMethodsServlet {
 
-    private static final Logger LOG = LoggerFactory.getLogger(MoveContentServlet.class);
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    private static final String DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSX";
+
+    /** Evaluates the moves without making them; GET streams them, POST submits a job that stores them as a plan. */
+    static final String MODE_PLAN = "plan";
+    /** Submits a job that applies the plan given in the plan parameter. */
+    static final String MODE_APPLY = "apply";
+
+    /** Value of the format parameter for NDJSON progress records instead of plain text lines. */
+    static final String FORMAT_NDJSON = "ndjson";
+
+    private static final String BASE_PATH = "/content/projects";
+    private static final String TARGET_PATH = "/content/site/us/en";
+
+    @Reference
+    private JobManager jobManager;
 
+    /**
+     * Submits the move, with mode=plan the writing of a plan, or with mode=apply the application of a stored plan,
+     * as a {@link MoveContentJobExecutor} job and answers 202 with the job id; the job then runs in the
+     * background with a service user, independent of this request. Since the service user may do more than the
+     * caller, a job is only submitted for callers who may themselves remove content below the base path and add
+     * it below the target path; others get 403.
+     */
     @Override
-    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
-        String timeFormat = "T00:00:00.000Z";
-        String targetDateString = request.getParameter("targetDate")+timeFormat;
-        StringBuilder logMessages = new StringBuilder();
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        String targetDateParam = request.getParameter("targetDate");
+        String mode = request.getParameter("mode");
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
 
-        if (targetDateString == null) {
-            logMessages.append("Missing targetDate parameter\n");
-            response.setContentType("text/plain");
-            response.getWriter().println(logMessages.toString());
+        if (!mayMove(request.getResourceResolver())) {
+            response.setStatus(SlingHttpServletResponse.SC_FORBIDDEN);
+            response.getWriter().println(error("Moving content requires remove permission on " + BASE_PATH
+                    + " and add node permission on " + TARGET_PATH));
+            return;
+        }
+
+        if (MODE_APPLY.equals(mode)) {
+            String planPath = request.getParameter("plan");
+            if (planPath == null) {
+                response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println(error("Missing plan parameter"));
+                return;
+            }
+            if (request.getResourceResolver().getResource(planPath) == null) {
+                // also keeps callers from applying plans they cannot read
+                response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
+                response.getWriter().println(error("No plan found at " + planPath));
+                return;
+            }
+            Map<String, Object> properties = new HashMap<>();
+            properties.put(MoveContentJobExecutor.PROPERTY_PLAN_PATH, planPath);
+            submit(request, response, properties);
+            return;
+        }
+
+        Date targetDate = null;
+        if (targetDateParam != null) {
+            try {
+                targetDate = new SimpleDateFormat(DATE_PATTERN).parse(targetDateParam + "T00:00:00.000Z");
+            } catch (ParseException e) {
+                targetDate = null;
+            }
+        }
+        if (targetDate == null) {
             response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println(error("Missing or invalid targetDate parameter. Expected format is yyyy-MM-dd"));
             return;
         }
 
-        Date targetDate;
+        Calendar targetCalendar = Calendar.getInstance();
+        targetCalendar.setTime(targetDate);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(MoveContentJobExecutor.PROPERTY_TARGET_DATE, targetCalendar);
+        properties.put(MoveContentJobExecutor.PROPERTY_BASE_PATH, BASE_PATH);
+        properties.put(MoveContentJobExecutor.PROPERTY_TARGET_PATH, TARGET_PATH);
+        if (MODE_PLAN.equals(mode)) {
+            properties.put(MoveContentJobExecutor.PROPERTY_MODE, MoveContentJobExecutor.MODE_PLAN);
+        }
+        String batchSizeParam = request.getParameter("batchSize");
+        if (batchSizeParam != null) {
+            try {
+                properties.put(MoveContentJobExecutor.PROPERTY_BATCH_SIZE, Integer.parseInt(batchSizeParam));
+            } catch (NumberFormatException e) {
+                response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().println(error("Invalid batchSize parameter"));
+                return;
+            }
+        }
+
+        submit(request, response, properties);
+    }
+
+    /**
+     * @return true if the session of the caller may remove content below the base path and add it below the target path
+     */
+    private boolean mayMove(ResourceResolver resolver) {
+        Session session = resolver.adaptTo(Session.class);
+        if (session == null) {
+            return false;
+        }
         try {
-            targetDate = DATE_FORMAT.parse(targetDateString);
-        } catch (ParseException e) {
-            logMessages.append("Invalid targetDate format. Expected format is yyyy-MM-dd\n");
+            return session.hasPermission(BASE_PATH, Session.ACTION_REMOVE)
+                    && session.hasPermission(TARGET_PATH, Session.ACTION_ADD_NODE);
+        } catch (RepositoryException e) {
+            return false;
+        }
+    }
+
+    private void submit(SlingHttpServletRequest request, SlingHttpServletResponse response, Map<String, Object> properties) throws IOException {
+        properties.put(MoveContentJobExecutor.PROPERTY_SUBMITTED_BY, request.getResourceResolver().getUserID());
+        Job job = jobManager.addJob(MoveContentJobExecutor.TOPIC, properties);
+        if (job == null) {
+            response.setStatus(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().println(error("Could not submit the move job"));
+            return;
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("jobId", job.getId());
+        result.addProperty("status", request.getRequestURI() + "?jobId=" + job.getId());
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        response.getWriter().println(result.toString());
+    }
+
+    /**
+     * Reports state, progress steps, ETA, progress log and result message of a submitted job.
+     */
+    private void jobStatus(String jobId, SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        Job job = jobManager.getJobById(jobId);
+        if (job == null || !MoveContentJobExecutor.TOPIC.equals(job.getTopic())) {
+            response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println(error("No move job found with id " + jobId));
+            return;
+        }
+
+        JsonObject status = new JsonObject();
+        status.addProperty("jobId", job.getId());
+        status.addProperty("state", job.getJobState().name());
+        status.addProperty("steps", job.getProgressStepCount());
+        status.addProperty("finishedSteps", job.getFinishedProgressStep());
+        if (job.getProgressETA() != null) {
+            status.addProperty("eta", ISO8601.format(job.getProgressETA()));
+        }
+        if (job.getProcessingStarted() != null) {
+            status.addProperty("started", ISO8601.format(job.getProcessingStarted()));
+        }
+        if (job.getFinishedDate() != null) {
+            status.addProperty("finished", ISO8601.format(job.getFinishedDate()));
+        }
+        String[] progressLog = job.getProgressLog();
+        if (progressLog != null && progressLog.length > 0) {
+            status.addProperty("progress", progressLog[progressLog.length - 1]);
+        }
+        if (job.getResultMessage() != null) {
+            status.addProperty("result", job.getResultMessage());
+        }
+        response.getWriter().println(status.toString());
+    }
+
+    private static String error(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        return error.toString();
+    }
+
+    /**
+     * Read-only side of the endpoint: reports the status of a submitted job, or evaluates the tree for the given
+     * targetDate and streams the moves it would make without writing anything. Moves, plans and plan
+     * applications are submitted with POST.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        String mode = request.getParameter("mode");
+        boolean ndjson = FORMAT_NDJSON.equals(request.getParameter("format"));
+
+        String jobId = request.getParameter("jobId");
+        if (jobId != null) {
+            jobStatus(jobId, response);
+            return;
+        }
+
+        if (!MODE_PLAN.equals(mode)) {
+            response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
             response.setContentType("text/plain");
-            response.getWriter().println(logMessages.toString());
+            response.getWriter().println("GET accepts jobId or mode=plan; moves and plans are applied with POST");
+            return;
+        }
+
+        String targetDateParam = request.getParameter("targetDate");
+        Date targetDate = null;
+        if (targetDateParam != null) {
+            try {
+                // SimpleDateFormat is not thread-safe, servlet requests run concurrently
+                targetDate = new SimpleDateFormat(DATE_PATTERN).parse(targetDateParam + "T00:00:00.000Z");
+            } catch (ParseException e) {
+                targetDate = null;
+            }
+        }
+        if (targetDate == null) {
             response.setStatus(SlingHttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("text/plain");
+            response.getWriter().println("Missing or invalid targetDate parameter. Expected format is yyyy-MM-dd");
             return;
         }
 
-        String basePath = "/content/projects";
-        String targetPath = "/content/site/us/en";
+        String basePath = BASE_PATH;
+        String targetPath = TARGET_PATH;
+
+        response.setContentType(ndjson ? ArchiveProgressWriter.CONTENT_TYPE_NDJSON : ArchiveProgressWriter.CONTENT_TYPE_TEXT);
+        response.setCharacterEncoding("UTF-8");
+        ArchiveProgressWriter progress = new ArchiveProgressWriter(response.getWriter(), ndjson, ArchiveProgressWriter.DEFAULT_FLUSH_EVERY);
 
         ResourceResolver resolver = request.getResourceResolver();
         Session session = resolver.adaptTo(Session.class);
@@ -60,54 +249,53 @@ public class MoveContentServlet extends SlingAllMethodsServlet {
         Resource baseResource = resolver.getResource(basePath);
 
         if (baseResource != null) {
+            // the plan only backs the batch, it is discarded instead of stored: GET never writes to the repository
+            ArchivePlanWriter plan = new ArchivePlanWriter();
+            ArchiveBatch batch = new ArchiveBatch(session, ArchiveBatch.DEFAULT_BATCH_SIZE, plan);
             try {
-                movePages(baseResource, resolver, session, targetPath, targetDate, logMessages);
-                session.save();
-                logMessages.append("Content moved successfully from ").append(basePath).append(" to ").append(targetPath).append("\n");
+                ArchiveRule rule = new ArchiveRule(null, null, "newsPublishDate", targetDate, ArchiveRule.MissingDatePolicy.KEEP);
+                movePages(baseResource, resolver, batch, targetPath, rule, progress);
             } catch (RepositoryException e) {
-                logMessages.append("Error moving content: ").append(e.getMessage()).append("\n");
+                progress.error(basePath, "Error evaluating moves: " + e.getMessage());
+            } finally {
+                plan.discard();
             }
+            progress.finish(batch.summary());
         } else {
-            logMessages.append("No resource found at ").append(basePath).append("\n");
+            progress.info("No resource found at " + basePath);
+            progress.finish("nothing to move");
         }
-
-        response.setContentType("text/plain");
-        response.getWriter().println(logMessages.toString());
     }
 
-    private void movePages(Resource resource, ResourceResolver resolver, Session session, String targetPath, Date targetDate, StringBuilder logMessages) throws RepositoryException {
+    private void movePages(Resource resource, ResourceResolver resolver, ArchiveBatch batch, String targetPath, ArchiveRule rule, ArchiveProgressWriter progress) throws RepositoryException {
         for (Resource child : resource.getChildren()) {
             Resource contentResource = child.getChild("jcr:content");
             if (contentResource != null) {
-                ValueMap properties = contentResource.getValueMap();
-                String newsPublishDateStr = properties.get("newsPublishDate", String.class);
-
-                if (newsPublishDateStr != null) {
-                    try {
-                        Date newsPublishDate = DATE_FORMAT.parse(newsPublishDateStr);
-                        if (newsPublishDate.before(targetDate)) {
-                            String currentPath = child.getPath();
-                            String newPath = targetPath + "/" + child.getName();
-
-                            logMessages.append("Moving page from ").append(currentPath).append(" to ").append(newPath).append("\n");
-
-                            try {
-                                session.move(currentPath, newPath);
-                            } catch (RepositoryException e) {
-                                logMessages.append("Failed to move content at path: ").append(currentPath).append(". Error: ").append(e.getMessage()).append("\n");
-                            }
-                        } else {
-                            logMessages.append("Skipping page: ").append(child.getPath()).append(" (newsPublishDate is newer than the target date)\n");
+                switch (rule.evaluate(contentResource.getValueMap())) {
+                    case ELIGIBLE:
+                        String currentPath = child.getPath();
+                        String newPath = targetPath + "/" + child.getName();
+
+                        progress.moved(currentPath, newPath);
+
+                        try {
+                            batch.move(currentPath, newPath);
+                        } catch (RepositoryException e) {
+                            progress.error(currentPath, "Failed to move content at path: " + currentPath + ". Error: " + e.getMessage());
                         }
-                    } catch (ParseException e) {
-                        logMessages.append("Failed to parse newsPublishDate for resource ").append(child.getPath()).append(": ").append(e.getMessage()).append("\n");
-                    }
-                } else {
-                    logMessages.append("No newsPublishDate found for resource ").append(child.getPath()).append("\n");
+                        break;
+                    case NOT_DUE:
+                        progress.skipped(child.getPath(), "newsPublishDate is newer than the target date");
+                        break;
+                    case INVALID_DATE:
+                        progress.error(child.getPath(), "Failed to parse newsPublishDate for resource " + child.getPath());
+                        break;
+                    default:
+                        progress.skipped(child.getPath(), "no newsPublishDate found");
                 }
             }
 
-            movePages(child, resolver, session, targetPath + "/" + child.getName(), targetDate, logMessages);
+            movePages(child, resolver, batch, targetPath + "/" + child.getName(), rule, progress);
         }
     }
 }
@@ -0,0 +1,214 @@
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.settings.SlingSettingsService;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the hot paths of an archive run, measured over one folder of {@code children} project
+ * nodes in an in-memory Oak repository (sling-mock {@link ResourceResolverType#JCR_OAK}). Half of the nodes
+ * are older than the cutoff, every tenth node is not COMPLETED.
+ * <ul>
+ * <li>{@code date*}: the eligibility check alone, on detached value maps: parsing {@code newsPublishDate} with
+ * one {@link SimpleDateFormat} per thread against a cutoff parsed once, reading {@code jcr:created} as a
+ * {@link Calendar}, and the {@link ArchiveRule} counterparts of both.</li>
+ * <li>{@code valueMapAccess} and {@code childIteration}: the repository reads every run repeats per node.</li>
+ * <li>{@code folderDecision}: {@code MoveContentScheduler.summarizeFolder} itself, which evaluates every node
+ * with the scheduler's {@link ArchiveRule} and decides between moving the whole folder and moving single
+ * nodes. It runs with a planning {@link ArchiveBatch}, so the moves it decides on are recorded in a plan
+ * instead of changing the folder, and that recording is part of the measurement.</li>
+ * </ul>
+ * Compiled together with the archive classes against JMH, sling-mock and the Oak mock, and run through the
+ * JMH runner, e.g. {@code java -jar benchmarks.jar ArchiveBenchmark -p children=1000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    private static final String FOLDER_PATH = "/content/site/us/en/benchmark";
+    private static final String DATE_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSX";
+
+    /** {@link SimpleDateFormat} is not thread safe, so every benchmark thread gets its own. */
+    @State(Scope.Thread)
+    public static class Formatter {
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN);
+    }
+
+    @Param({"100", "1000", "10000"})
+    public int children;
+
+    private BundleContext bundleContext;
+    private ResourceResolver resolver;
+    private ArchiveAuditJournal journal;
+    private MoveContentScheduler scheduler;
+    private ArchivePlanWriter plan;
+    private Resource folder;
+    private List<ValueMap> properties;
+    private Date cutoff;
+    private ArchiveRule createdRule;
+    private ArchiveRule publishDateRule;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final Calendar cutoffCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        cutoffCalendar.set(2024, Calendar.APRIL, 11, 0, 0, 0);
+        cutoffCalendar.set(Calendar.MILLISECOND, 0);
+        cutoff = cutoffCalendar.getTime();
+        createdRule = new ArchiveRule("aemProjectStatus", "COMPLETED", "jcr:created", cutoff, ArchiveRule.MissingDatePolicy.KEEP);
+        publishDateRule = new ArchiveRule(null, null, "newsPublishDate", cutoff, ArchiveRule.MissingDatePolicy.KEEP);
+
+        final SimpleDateFormat format = new SimpleDateFormat(DATE_PATTERN);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        bundleContext = MockOsgi.newBundleContext();
+        final ResourceResolverFactory factory = MockSling.newResourceResolverFactory(ResourceResolverType.JCR_OAK, bundleContext);
+        bundleContext.registerService(ResourceResolverFactory.class, factory, null);
+        resolver = factory.getAdministrativeResourceResolver(null);
+        final Resource parent = resolver.create(resolver.create(resolver.create(resolver.create(
+                resolver.getResource("/"), "content", null), "site", null), "us", null), "en", null);
+        folder = resolver.create(parent, "benchmark", null);
+        properties = new ArrayList<>(children);
+        for (int i = 0; i < children; i++) {
+            final Calendar date = (Calendar) cutoffCalendar.clone();
+            date.add(Calendar.DAY_OF_MONTH, i % 2 == 0 ? -30 - i % 365 : 1 + i % 365);
+            final Map<String, Object> nodeProperties = new HashMap<>();
+            nodeProperties.put("aemProjectStatus", i % 10 == 0 ? "ACTIVE" : "COMPLETED");
+            nodeProperties.put("jcr:created", date);
+            nodeProperties.put("newsPublishDate", format.format(date.getTime()));
+            resolver.create(folder, "project-" + i, nodeProperties);
+            properties.add(new ValueMapDecorator(new HashMap<>(nodeProperties)));
+        }
+        resolver.commit();
+        folder = resolver.getResource(FOLDER_PATH);
+
+        bundleContext.registerService(MetricsService.class, MetricsService.NOOP, null);
+        bundleContext.registerService(Scheduler.class, Mockito.mock(Scheduler.class, Mockito.RETURNS_DEEP_STUBS), null);
+        bundleContext.registerService(JobManager.class, Mockito.mock(JobManager.class), null);
+        final SlingSettingsService slingSettings = Mockito.mock(SlingSettingsService.class);
+        Mockito.when(slingSettings.getSlingId()).thenReturn("benchmark");
+        bundleContext.registerService(SlingSettingsService.class, slingSettings, null);
+        journal = new ArchiveAuditJournal();
+        MockOsgi.activate(journal, bundleContext, "directory", Files.createTempDirectory("archive-audit-").toString());
+        bundleContext.registerService(ArchiveAuditJournal.class, journal, null);
+        scheduler = new MoveContentScheduler();
+        MockOsgi.injectServices(scheduler, bundleContext);
+        MockOsgi.activate(scheduler, bundleContext);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpPlan() throws Exception {
+        plan = new ArchivePlanWriter();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownPlan() {
+        plan.discard();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MockOsgi.deactivate(scheduler, bundleContext);
+        MockOsgi.deactivate(journal, bundleContext);
+        resolver.close();
+        MockOsgi.shutdown(bundleContext);
+    }
+
+    @Benchmark
+    public void dateSimpleDateFormatParse(final Formatter formatter, final Blackhole blackhole) throws ParseException {
+        for (final ValueMap node : properties) {
+            final Date publishDate = formatter.format.parse(node.get("newsPublishDate", String.class));
+            blackhole.consume(publishDate.before(cutoff));
+        }
+    }
+
+    @Benchmark
+    public void dateRuleString(final Blackhole blackhole) {
+        for (final ValueMap node : properties) {
+            blackhole.consume(publishDateRule.evaluate(node));
+        }
+    }
+
+    @Benchmark
+    public void dateCalendar(final Blackhole blackhole) {
+        for (final ValueMap node : properties) {
+            final Calendar created = node.get("jcr:created", Calendar.class);
+            blackhole.consume(created != null && created.getTime().before(cutoff));
+        }
+    }
+
+    @Benchmark
+    public void dateRuleCalendar(final Blackhole blackhole) {
+        for (final ValueMap node : properties) {
+            blackhole.consume(createdRule.evaluate(node));
+        }
+    }
+
+    @Benchmark
+    public void valueMapAccess(final Blackhole blackhole) {
+        for (final Resource node : folder.getChildren()) {
+            final ValueMap nodeProperties = node.getValueMap();
+            blackhole.consume(nodeProperties.get("aemProjectStatus", String.class));
+            blackhole.consume(nodeProperties.get("jcr:created", Calendar.class));
+        }
+    }
+
+    @Benchmark
+    public int childIteration() {
+        int count = 0;
+        for (final Resource node : folder.getChildren()) {
+            if (node.hasChildren()) {
+                count++;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public ArchiveFolderSummary folderDecision() throws RepositoryException {
+        final ArchiveBatch batch = new ArchiveBatch(resolver.adaptTo(Session.class), ArchiveBatch.DEFAULT_BATCH_SIZE, plan);
+        return scheduler.summarizeFolder(folder, resolver, batch, null, null, MoveContentScheduler.TARGET_PATH,
+                MoveContentScheduler.ITRANSLATE_PATH, createdRule, true);
+    }
+}
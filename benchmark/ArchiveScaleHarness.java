@@ -0,0 +1,185 @@
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.metrics.internal.MetricsServiceImpl;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.settings.SlingSettingsService;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link MoveContentScheduler#run()} against trees of about 10k, 100k and 1M nodes built by
+ * {@link ArchiveTreeGenerator} in an in-memory Oak repository, and prints one CSV line per size with the run
+ * duration, the peak heap used during the run, the average number of moves per commit and the duration of a
+ * second run over the unchanged rest of the tree, which the folder fingerprints should mostly skip. Fails with exit
+ * code 1 when the time per node at any size exceeds {@link #MAX_MICROS_PER_NODE}, the peak heap per node
+ * exceeds {@link #MAX_HEAP_BYTES_PER_NODE}, or the time per node grows by more than
+ * {@link #MAX_SCALING_FACTOR} from the smallest to the largest tree, i.e. the run stops scaling linearly.
+ * <p>
+ * Sizes can be limited with the first argument, e.g. {@code 10000,100000}.
+ */
+public class ArchiveScaleHarness {
+
+    static final double MAX_MICROS_PER_NODE = 200;
+    static final double MAX_HEAP_BYTES_PER_NODE = 4096;
+    static final double MAX_SCALING_FACTOR = 2.0;
+
+    /** Fan-out of a depth 3 tree with 10 nodes per folder for about 10k, 100k and 1M nodes. */
+    private static final int[][] SIZES = {{10_000, 10}, {100_000, 21}, {1_000_000, 46}};
+
+    private static final int ARCHIVE_AGE_MONTHS = 6;
+    private static final int BATCH_SIZE = ArchiveBatch.DEFAULT_BATCH_SIZE;
+
+    /** One point of the scaling curve. */
+    private static class Result {
+        long nodes;
+        long durationMillis;
+        long peakHeapBytes;
+        double movesPerCommit;
+        long rerunMillis;
+
+        double microsPerNode() {
+            return durationMillis * 1000.0 / nodes;
+        }
+
+        double heapBytesPerNode() {
+            return (double) peakHeapBytes / nodes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d,%d,%.1f,%d,%.0f,%.1f,%d", nodes, durationMillis, microsPerNode(), peakHeapBytes,
+                    heapBytesPerNode(), movesPerCommit, rerunMillis);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final List<Integer> limit = new ArrayList<>();
+        if (args.length > 0) {
+            for (final String size : args[0].split(",")) {
+                limit.add(Integer.parseInt(size.trim()));
+            }
+        }
+
+        final List<Result> results = new ArrayList<>();
+        System.out.println("nodes,durationMillis,microsPerNode,peakHeapBytes,heapBytesPerNode,movesPerCommit,rerunMillis");
+        for (final int[] size : SIZES) {
+            if (limit.isEmpty() || limit.contains(size[0])) {
+                final Result result = run(size[1]);
+                results.add(result);
+                System.out.println(result);
+            }
+        }
+
+        final List<String> violations = check(results);
+        for (final String violation : violations) {
+            System.err.println("Regression: " + violation);
+        }
+        System.exit(violations.isEmpty() ? 0 : 1);
+    }
+
+    private static Result run(final int fanOut) throws Exception {
+        final BundleContext bundleContext = MockOsgi.newBundleContext();
+        final ResourceResolverFactory factory = MockSling.newResourceResolverFactory(ResourceResolverType.JCR_OAK, bundleContext);
+        bundleContext.registerService(ResourceResolverFactory.class, factory, null);
+        // the Sling Metrics implementation backed by a MetricRegistry, so the counters read below actually count
+        final MetricsServiceImpl metricsService = new MetricsServiceImpl();
+        MockOsgi.injectServices(metricsService, bundleContext);
+        MockOsgi.activate(metricsService, bundleContext);
+        bundleContext.registerService(Scheduler.class, Mockito.mock(Scheduler.class, Mockito.RETURNS_DEEP_STUBS), null);
+        bundleContext.registerService(JobManager.class, Mockito.mock(JobManager.class), null);
+        final SlingSettingsService slingSettings = Mockito.mock(SlingSettingsService.class);
+        Mockito.when(slingSettings.getSlingId()).thenReturn("scale-harness");
+        bundleContext.registerService(SlingSettingsService.class, slingSettings, null);
+
+        final ArchiveAuditJournal journal = new ArchiveAuditJournal();
+        MockOsgi.activate(journal, bundleContext, "directory", Files.createTempDirectory("archive-audit-").toString());
+        bundleContext.registerService(ArchiveAuditJournal.class, journal, null);
+
+        final Result result = new Result();
+        final ArchiveTreeGenerator generator = new ArchiveTreeGenerator().fanOut(fanOut);
+        try (ResourceResolver resolver = factory.getAdministrativeResourceResolver(null)) {
+            result.nodes = generator.generate(resolver, ArchiveRule.monthsAgo(ARCHIVE_AGE_MONTHS));
+        }
+
+        final MoveContentScheduler scheduler = new MoveContentScheduler();
+        MockOsgi.injectServices(scheduler, bundleContext);
+        MockOsgi.activate(scheduler, bundleContext,
+                "archive.age.months", ARCHIVE_AGE_MONTHS,
+                "batch.size", BATCH_SIZE);
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        final long baseline = memory.getHeapMemoryUsage().getUsed();
+        final AtomicLong peak = new AtomicLong(baseline);
+        final Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final long start = System.nanoTime();
+        try {
+            scheduler.run();
+            result.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            sampler.interrupt();
+            sampler.join();
+            final ArchiveMetrics metrics = scheduler.getMetrics();
+            final long moves = metrics.getPagesMoved() + metrics.getFoldersMoved();
+            result.movesPerCommit = metrics.getBatchesCommitted() > 0 ? (double) moves / metrics.getBatchesCommitted() : 0;
+
+            final long rerunStart = System.nanoTime();
+            scheduler.run();
+            result.rerunMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - rerunStart);
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+            MockOsgi.deactivate(scheduler, bundleContext);
+            MockOsgi.deactivate(journal, bundleContext);
+            MockOsgi.deactivate(metricsService, bundleContext);
+            MockOsgi.shutdown(bundleContext);
+        }
+
+        result.peakHeapBytes = Math.max(0, peak.get() - baseline);
+        return result;
+    }
+
+    private static List<String> check(final List<Result> results) {
+        final List<String> violations = new ArrayList<>();
+        for (final Result result : results) {
+            if (result.microsPerNode() > MAX_MICROS_PER_NODE) {
+                violations.add(String.format("%d nodes took %.1f us per node, limit %.0f", result.nodes, result.microsPerNode(), MAX_MICROS_PER_NODE));
+            }
+            if (result.heapBytesPerNode() > MAX_HEAP_BYTES_PER_NODE) {
+                violations.add(String.format("%d nodes used %.0f heap bytes per node, limit %.0f", result.nodes, result.heapBytesPerNode(), MAX_HEAP_BYTES_PER_NODE));
+            }
+        }
+        if (results.size() > 1) {
+            final Result smallest = results.get(0);
+            final Result largest = results.get(results.size() - 1);
+            final double factor = largest.microsPerNode() / smallest.microsPerNode();
+            if (factor > MAX_SCALING_FACTOR) {
+                violations.add(String.format("time per node grew %.1fx from %d to %d nodes, limit %.1fx", factor, smallest.nodes, largest.nodes, MAX_SCALING_FACTOR));
+            }
+        }
+        return violations;
+    }
+}
@@ -0,0 +1,206 @@
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds a synthetic content tree of the shape {@link MoveContentScheduler} archives, in the spirit of the
+ * ACS AEM Tools test page generator. Below the base path it creates {@code fanOut} folders per level down to
+ * {@code depth} levels, each holding {@code nodesPerFolder} project nodes with an {@code aemProjectStatus}, a
+ * {@code jcr:created} date and a {@code jcr:lastModified} date and {@code pagesPerFolder} pages with the same
+ * properties, whose modification date is kept as {@code cq:lastModified} on their jcr:content child, plus
+ * {@code fanOut} top level pages. The modification dates let the fingerprints of a walk describe the folders,
+ * so a second run over the same tree skips them. A share of the folder
+ * and node names is also created under the archive target and the itranslate folder, so a run hits the
+ * delete-before-move paths. The tree is random but fixed by the seed, and is saved every
+ * {@link #SAVE_EVERY} nodes.
+ */
+public class ArchiveTreeGenerator {
+
+    static final int SAVE_EVERY = 1000;
+
+    private int depth = 3;
+    private int fanOut = 10;
+    private int nodesPerFolder = 10;
+    private int pagesPerFolder = 2;
+    private double oldRatio = 0.5;
+    private double completedRatio = 0.9;
+    private double conflictRatio = 0.05;
+    private int maxAgeDays = 365;
+    private long seed = 42;
+
+    private Random random;
+    private Date cutoff;
+    private int created;
+    private int pending;
+
+    public ArchiveTreeGenerator depth(final int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public ArchiveTreeGenerator fanOut(final int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public ArchiveTreeGenerator nodesPerFolder(final int nodesPerFolder) {
+        this.nodesPerFolder = nodesPerFolder;
+        return this;
+    }
+
+    /**
+     * @param pagesPerFolder  number of pages, i.e. nodes with a jcr:content child, in every folder
+     */
+    public ArchiveTreeGenerator pagesPerFolder(final int pagesPerFolder) {
+        this.pagesPerFolder = pagesPerFolder;
+        return this;
+    }
+
+    /**
+     * @param oldRatio  share of nodes dated before the cutoff
+     */
+    public ArchiveTreeGenerator oldRatio(final double oldRatio) {
+        this.oldRatio = oldRatio;
+        return this;
+    }
+
+    /**
+     * @param completedRatio  share of nodes with aemProjectStatus COMPLETED, the others are ACTIVE
+     */
+    public ArchiveTreeGenerator completedRatio(final double completedRatio) {
+        this.completedRatio = completedRatio;
+        return this;
+    }
+
+    /**
+     * @param conflictRatio  share of folders and nodes that already exist in the archive target and itranslate
+     */
+    public ArchiveTreeGenerator conflictRatio(final double conflictRatio) {
+        this.conflictRatio = conflictRatio;
+        return this;
+    }
+
+    /**
+     * @param maxAgeDays  dates are spread up to this many days on either side of the cutoff
+     */
+    public ArchiveTreeGenerator maxAgeDays(final int maxAgeDays) {
+        this.maxAgeDays = maxAgeDays;
+        return this;
+    }
+
+    public ArchiveTreeGenerator seed(final long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @return the number of folders and nodes a tree with the current settings holds below the base path
+     */
+    public long size() {
+        long folders = 0;
+        long level = 1;
+        for (int i = 0; i < depth; i++) {
+            level *= fanOut;
+            folders += level;
+        }
+        return folders * (nodesPerFolder + pagesPerFolder * 2L + 1) + fanOut * 2L;
+    }
+
+    /**
+     * Generates the tree below {@link MoveContentScheduler#BASE_PATH} and the conflicts below
+     * {@link MoveContentScheduler#TARGET_PATH} and {@link MoveContentScheduler#ITRANSLATE_PATH}.
+     *
+     * @param cutoff  the date the archive run compares against
+     * @return the number of resources created
+     */
+    public int generate(final ResourceResolver resolver, final Date cutoff) throws PersistenceException {
+        this.random = new Random(seed);
+        this.cutoff = cutoff;
+        this.created = 0;
+        this.pending = 0;
+
+        final Resource base = ResourceUtil.getOrCreateResource(resolver, MoveContentScheduler.BASE_PATH, (String) null, null, false);
+        ResourceUtil.getOrCreateResource(resolver, MoveContentScheduler.TARGET_PATH, (String) null, null, false);
+        ResourceUtil.getOrCreateResource(resolver, MoveContentScheduler.ITRANSLATE_PATH, (String) null, null, false);
+
+        for (int i = 0; i < fanOut; i++) {
+            final String name = "page-" + i;
+            createPage(resolver, base, name);
+            addConflict(resolver, name);
+        }
+        generateFolders(resolver, base, 1, "");
+        resolver.commit();
+        return created;
+    }
+
+    private void generateFolders(final ResourceResolver resolver, final Resource parent, final int level, final String prefix)
+            throws PersistenceException {
+        for (int i = 0; i < fanOut; i++) {
+            final String folderName = "folder" + prefix + "-" + i;
+            final Resource folder = create(resolver, parent, folderName, null);
+            addConflict(resolver, folderName);
+            for (int n = 0; n < nodesPerFolder; n++) {
+                create(resolver, folder, "project-" + n, nodeProperties());
+            }
+            for (int p = 0; p < pagesPerFolder; p++) {
+                createPage(resolver, folder, "page-" + p);
+            }
+            if (level < depth) {
+                generateFolders(resolver, folder, level + 1, prefix + "-" + i);
+            }
+        }
+    }
+
+    private void createPage(final ResourceResolver resolver, final Resource parent, final String name) throws PersistenceException {
+        final Map<String, Object> properties = nodeProperties();
+        final Object lastModified = properties.remove("jcr:lastModified");
+        final Resource page = create(resolver, parent, name, properties);
+        create(resolver, page, "jcr:content", Collections.singletonMap("cq:lastModified", lastModified));
+    }
+
+    private Map<String, Object> nodeProperties() {
+        final Calendar date = Calendar.getInstance();
+        date.setTime(cutoff);
+        final int days = 1 + random.nextInt(maxAgeDays);
+        date.add(Calendar.DAY_OF_MONTH, random.nextDouble() < oldRatio ? -days : days);
+        final Calendar lastModified = (Calendar) date.clone();
+        lastModified.add(Calendar.DAY_OF_MONTH, random.nextInt(30));
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("aemProjectStatus", random.nextDouble() < completedRatio ? "COMPLETED" : "ACTIVE");
+        properties.put("jcr:created", date);
+        properties.put("jcr:lastModified", lastModified);
+        return properties;
+    }
+
+    private void addConflict(final ResourceResolver resolver, final String name) throws PersistenceException {
+        if (random.nextDouble() >= conflictRatio) {
+            return;
+        }
+        for (final String path : new String[]{MoveContentScheduler.TARGET_PATH, MoveContentScheduler.ITRANSLATE_PATH}) {
+            final Resource parent = resolver.getResource(path);
+            if (parent.getChild(name) == null) {
+                create(resolver, parent, name, null);
+            }
+        }
+    }
+
+    private Resource create(final ResourceResolver resolver, final Resource parent, final String name,
+                            final Map<String, Object> properties) throws PersistenceException {
+        final Resource resource = resolver.create(parent, name, properties);
+        created++;
+        if (++pending >= SAVE_EVERY) {
+            resolver.commit();
+            pending = 0;
+        }
+        return resource;
+    }
+}
@@ -21,7 +21,9 @@ public class fiddle extends SlingAllMethodsServlet {
 
         ResourceResolver resolver = request.getResourceResolver();
         Session session = resolver.adaptTo(Session.class);
-        StringBuilder output = new StringBuilder();
+        // Write straight to the response so progress reaches the client as it happens
+        response.setContentType("text/plain");
+        PrintWriter output = response.getWriter();
 
         Resource baseResource = resolver.getResource(basePath);
 
@@ -36,13 +38,11 @@ public class fiddle extends SlingAllMethodsServlet {
         } else {
             output.append("No resource found at ").append(basePath);
         }
-
-        response.setContentType("text/plain");
-        PrintWriter writer = response.getWriter();
-        writer.println(output.toString());
+        output.println();
+        output.flush();
     }
 
-    private void movePages(Resource resource, StringBuilder output, ResourceResolver resolver, Session session, String targetPath) throws RepositoryException {
+    private void movePages(Resource resource, PrintWriter output, ResourceResolver resolver, Session session, String targetPath) throws RepositoryException {
         for (Resource child : resource.getChildren()) {
             String currentPath = child.getPath();
 
@@ -60,6 +60,8 @@ public class fiddle extends SlingAllMethodsServlet {
             } catch (RepositoryException e) {
             }
 
+            output.flush();
+
             // Recursively move child resources if there are any
             movePages(child, output, resolver, session, targetPath + "/" + child.getName());
         }
@@ -12,14 +12,17 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Calendar;
 import java.util.Date;
 
 public class fiddle extends SlingAllMethodsServlet {
 
     private static final String TARGET_DATE_STRING = "2024-04-11T00:00:00.000Z";
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+    // Same pattern as ArchiveRule: accepts Z, +05:30, +0530 and +05; thread-safe, unlike SimpleDateFormat
+    private static final DateTimeFormatter PUBLISH_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS[XXX][XX][X]");
 
     @Override
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
@@ -28,62 +31,81 @@ public class fiddle extends SlingAllMethodsServlet {
 
         ResourceResolver resolver = request.getResourceResolver();
         Session session = resolver.adaptTo(Session.class);
-        StringBuilder output = new StringBuilder();
+        // Write straight to the response so progress reaches the client as it happens
+        response.setContentType("text/plain");
+        PrintWriter output = response.getWriter();
 
         Resource baseResource = resolver.getResource(basePath);
 
         if (baseResource != null) {
             try {
-                Date targetDate = DATE_FORMAT.parse(TARGET_DATE_STRING);
+                Date targetDate = Date.from(OffsetDateTime.parse(TARGET_DATE_STRING, PUBLISH_DATE_FORMAT).toInstant());
                 movePages(baseResource, output, resolver, session, targetPath, targetDate);
                 session.save();
                 output.append("Content moved successfully from ").append(basePath).append(" to ").append(targetPath);
-            } catch (RepositoryException | ParseException e) {
+            } catch (RepositoryException e) {
                 output.append("Error moving content: ").append(e.getMessage());
             }
         } else {
             output.append("No resource found at ").append(basePath);
         }
-
-        response.setContentType("text/plain");
-        PrintWriter writer = response.getWriter();
-        writer.println(output.toString());
+        output.println();
+        output.flush();
     }
 
-    private void movePages(Resource resource, StringBuilder output, ResourceResolver resolver, Session session, String targetPath, Date targetDate) throws RepositoryException {
+    private void movePages(Resource resource, PrintWriter output, ResourceResolver resolver, Session session, String targetPath, Date targetDate) throws RepositoryException {
         for (Resource child : resource.getChildren()) {
             Resource contentResource = child.getChild("jcr:content");
             if (contentResource != null) {
                 ValueMap properties = contentResource.getValueMap(); 
-                String newsPublishDateStr = properties.get("newsPublishDate", String.class);
+                // Read the raw value: a string with an offset like +0530 does not convert to a Calendar
+                Object newsPublishDate = properties.get("newsPublishDate");
+                long publishMillis = getDateMillis(newsPublishDate);
 
-                if (newsPublishDateStr != null) {
-                    try {
-                        Date newsPublishDate = DATE_FORMAT.parse(newsPublishDateStr);
-                        if (newsPublishDate.before(targetDate)) {
-                            String currentPath = child.getPath();
-                            String newPath = targetPath + "/" + child.getName();
+                if (newsPublishDate != null && publishMillis < 0) {
+                    output.append("Failed to parse newsPublishDate for resource ").append(child.getPath()).append("\n");
+                } else if (newsPublishDate != null) {
+                    if (publishMillis < targetDate.getTime()) {
+                        String currentPath = child.getPath();
+                        String newPath = targetPath + "/" + child.getName();
 
-                            output.append("Moving page from ").append(currentPath).append(" to ").append(newPath).append("\n");
+                        output.append("Moving page from ").append(currentPath).append(" to ").append(newPath).append("\n");
 
-                           
-                            try {
-                                session.move(currentPath, newPath);
-                            } catch (RepositoryException e) {
-                                output.append("Failed to move content at path: ").append(currentPath).append(". Error: ").append(e.getMessage()).append("\n");
-                            }
-                        } else {
-                            output.append("Skipping page: ").append(child.getPath()).append(" (newsPublishDate is newer than the target date)\n");
+                       
+                        try {
+                            session.move(currentPath, newPath);
+                        } catch (RepositoryException e) {
+                            output.append("Failed to move content at path: ").append(currentPath).append(". Error: ").append(e.getMessage()).append("\n");
                         }
-                    } catch (ParseException e) {
-                        output.append("Failed to parse newsPublishDate for resource ").append(child.getPath()).append("\n");
+                    } else {
+                        output.append("Skipping page: ").append(child.getPath()).append(" (newsPublishDate is newer than the target date)\n");
                     }
                 } else {
                     output.append("No newsPublishDate found for resource ").append(child.getPath()).append("\n");
                 }
             }
 
+            output.flush();
             movePages(child, output, resolver, session, targetPath + "/" + child.getName(), targetDate);
         }
     }
+
+    /**
+     * Reads a date stored either as a JCR date or as a string, as ArchiveRule.getDateMillis does.
+     *
+     * @return the date in millis, or -1 if the value is missing or not a date
+     */
+    private static long getDateMillis(Object date) {
+        if (date instanceof Calendar) {
+            return ((Calendar) date).getTimeInMillis();
+        }
+        if (date instanceof String) {
+            try {
+                return OffsetDateTime.parse((String) date, PUBLISH_DATE_FORMAT).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,260 @@
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.commons.metrics.MetricsService;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.discovery.ClusterView;
+import org.apache.sling.discovery.InstanceDescription;
+import org.apache.sling.discovery.TopologyEvent;
+import org.apache.sling.discovery.TopologyView;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobExecutionContext;
+import org.apache.sling.event.jobs.consumer.JobExecutor;
+import org.apache.sling.settings.SlingSettingsService;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Partition ownership and rebalancing of {@link ArchivePartitionCoordinator} with two simulated cluster members.
+ * Both share one in-memory Oak repository (sling-mock {@link ResourceResolverType#JCR_OAK}), and each has its own
+ * OSGi service registry with its own {@link MoveContentScheduler} and coordinator. Topology events are built
+ * from mocked views, as Sling Discovery would send them to every member.
+ */
+public class ArchivePartitionCoordinatorTest {
+
+    private static final int PARTITIONS = 4;
+
+    /** One member of the simulated cluster. */
+    private static class Instance {
+        final String slingId;
+        final BundleContext bundleContext = MockOsgi.newBundleContext();
+        final MoveContentScheduler scheduler = new MoveContentScheduler();
+        final ArchiveAuditJournal journal = new ArchiveAuditJournal();
+        final ArchivePartitionCoordinator coordinator = new ArchivePartitionCoordinator();
+        TopologyView view;
+
+        Instance(final String slingId) {
+            this.slingId = slingId;
+        }
+
+        void start(final ResourceResolverFactory factory) throws Exception {
+            bundleContext.registerService(ResourceResolverFactory.class, factory, null);
+            bundleContext.registerService(MetricsService.class, MetricsService.NOOP, null);
+            bundleContext.registerService(Scheduler.class, Mockito.mock(Scheduler.class, Mockito.RETURNS_DEEP_STUBS), null);
+            bundleContext.registerService(JobManager.class, Mockito.mock(JobManager.class), null);
+            final SlingSettingsService slingSettings = Mockito.mock(SlingSettingsService.class);
+            Mockito.when(slingSettings.getSlingId()).thenReturn(slingId);
+            bundleContext.registerService(SlingSettingsService.class, slingSettings, null);
+
+            MockOsgi.activate(journal, bundleContext, "directory", Files.createTempDirectory("archive-audit-").toString());
+            bundleContext.registerService(ArchiveAuditJournal.class, journal, null);
+
+            MockOsgi.injectServices(scheduler, bundleContext);
+            MockOsgi.activate(scheduler, bundleContext,
+                    "distribution", MoveContentScheduler.DISTRIBUTION_CLUSTER,
+                    "partitions", PARTITIONS);
+            bundleContext.registerService(MoveContentScheduler.class, scheduler, null);
+
+            MockOsgi.injectServices(coordinator, bundleContext);
+            MockOsgi.activate(coordinator, bundleContext);
+        }
+
+        void stop() {
+            MockOsgi.deactivate(coordinator, bundleContext);
+            MockOsgi.deactivate(scheduler, bundleContext);
+            MockOsgi.deactivate(journal, bundleContext);
+            MockOsgi.shutdown(bundleContext);
+        }
+
+        /**
+         * Sends the first view, or a change to the given view preceded by TOPOLOGY_CHANGING.
+         */
+        void join(final Instance... members) {
+            final TopologyView newView = view(this, members);
+            if (view == null) {
+                coordinator.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_INIT, null, newView));
+            } else {
+                coordinator.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGING, view, null));
+                coordinator.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGED, view, newView));
+            }
+            view = newView;
+        }
+
+        void changing() {
+            coordinator.handleTopologyEvent(new TopologyEvent(TopologyEvent.Type.TOPOLOGY_CHANGING, view, null));
+        }
+
+        /**
+         * @return the topics this instance currently processes jobs for
+         */
+        Set<String> topics() throws Exception {
+            final Set<String> topics = new TreeSet<>();
+            for (final ServiceReference<JobExecutor> reference : bundleContext.getServiceReferences(JobExecutor.class, null)) {
+                topics.addAll(Arrays.asList((String[]) reference.getProperty(JobExecutor.PROPERTY_TOPICS)));
+            }
+            return topics;
+        }
+    }
+
+    private ResourceResolverFactory factory;
+    private Instance first;
+    private Instance second;
+
+    @Before
+    public void setUp() throws Exception {
+        factory = MockSling.newResourceResolverFactory(ResourceResolverType.JCR_OAK);
+        first = new Instance("instance-a");
+        second = new Instance("instance-b");
+        first.start(factory);
+        second.start(factory);
+    }
+
+    @After
+    public void tearDown() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void partitionsAreDealtOutOverTheMembers() throws Exception {
+        first.join(first, second);
+        second.join(first, second);
+
+        assertEquals(topics(0, 2), first.topics());
+        assertEquals(topics(1, 3), second.topics());
+    }
+
+    @Test
+    public void topologyChangingPausesAllPartitions() throws Exception {
+        first.join(first, second);
+        second.join(first, second);
+
+        first.changing();
+        second.changing();
+
+        assertTrue(first.topics().isEmpty());
+        assertTrue(second.topics().isEmpty());
+    }
+
+    @Test
+    public void remainingMemberTakesOverThePartitionsOfOneThatLeft() throws Exception {
+        first.join(first, second);
+        second.join(first, second);
+
+        second.changing();
+        first.join(first);
+
+        assertEquals(topics(0, 1, 2, 3), first.topics());
+    }
+
+    @Test
+    public void joiningMemberTakesOverPartOfThePartitions() throws Exception {
+        first.join(first);
+        assertEquals(topics(0, 1, 2, 3), first.topics());
+
+        first.join(first, second);
+        second.join(first, second);
+
+        assertEquals(topics(0, 2), first.topics());
+        assertEquals(topics(1, 3), second.topics());
+    }
+
+    @Test
+    public void ownerArchivesTheSubtreeInTheSharedRepository() throws Exception {
+        first.join(first, second);
+        second.join(first, second);
+
+        final String name = "folder-old";
+        final String subtreePath = MoveContentScheduler.BASE_PATH + "/" + name;
+        final Calendar created = Calendar.getInstance();
+        created.add(Calendar.YEAR, -2);
+        try (ResourceResolver resolver = factory.getAdministrativeResourceResolver(null)) {
+            ResourceUtil.getOrCreateResource(resolver, MoveContentScheduler.TARGET_PATH, (String) null, null, false);
+            ResourceUtil.getOrCreateResource(resolver, MoveContentScheduler.ITRANSLATE_PATH, (String) null, null, false);
+            ResourceUtil.getOrCreateResource(resolver, subtreePath, (String) null, null, false);
+            for (int i = 0; i < 3; i++) {
+                final Map<String, Object> properties = new HashMap<>();
+                properties.put("aemProjectStatus", "COMPLETED");
+                properties.put("jcr:created", created);
+                resolver.create(resolver.getResource(subtreePath), "project-" + i, properties);
+            }
+            resolver.commit();
+        }
+
+        final String topic = ArchivePartitionCoordinator.topic(ArchivePartitionCoordinator.partitionOf(name, PARTITIONS));
+        final Instance owner = first.topics().contains(topic) ? first : second;
+        final Instance other = owner == first ? second : first;
+        assertFalse(other.topics().contains(topic));
+
+        final Job job = Mockito.mock(Job.class);
+        Mockito.when(job.getTopic()).thenReturn(topic);
+        Mockito.when(job.getProperty(ArchivePartitionCoordinator.PROPERTY_SUBTREE_PATH, String.class)).thenReturn(subtreePath);
+        Mockito.when(job.getProperty(ArchivePartitionCoordinator.PROPERTY_TARGET_DATE, Calendar.class)).thenReturn(Calendar.getInstance());
+        owner.coordinator.process(job, Mockito.mock(JobExecutionContext.class, Mockito.RETURNS_DEEP_STUBS));
+
+        // read back through a resolver of its own, as the other member would see it
+        try (ResourceResolver resolver = factory.getAdministrativeResourceResolver(null)) {
+            for (int i = 0; i < 3; i++) {
+                assertNull(resolver.getResource(subtreePath + "/project-" + i));
+                assertNotNull(resolver.getResource(MoveContentScheduler.TARGET_PATH + "/" + name + "/project-" + i));
+            }
+        }
+    }
+
+    private static Set<String> topics(final int... partitions) {
+        final Set<String> topics = new TreeSet<>();
+        for (final int partition : partitions) {
+            topics.add(ArchivePartitionCoordinator.topic(partition));
+        }
+        return topics;
+    }
+
+    /**
+     * @return a view of one cluster holding the given members, as seen from the local instance
+     */
+    private static TopologyView view(final Instance local, final Instance... members) {
+        final ClusterView cluster = Mockito.mock(ClusterView.class);
+        final List<InstanceDescription> instances = new ArrayList<>();
+        InstanceDescription localDescription = null;
+        for (final Instance member : members) {
+            final InstanceDescription description = Mockito.mock(InstanceDescription.class);
+            Mockito.when(description.getSlingId()).thenReturn(member.slingId);
+            Mockito.when(description.getClusterView()).thenReturn(cluster);
+            Mockito.when(description.isLocal()).thenReturn(member == local);
+            instances.add(description);
+            if (member == local) {
+                localDescription = description;
+            }
+        }
+        Mockito.when(cluster.getInstances()).thenReturn(instances);
+
+        final TopologyView view = Mockito.mock(TopologyView.class);
+        Mockito.when(view.getLocalInstance()).thenReturn(localDescription);
+        Mockito.when(view.isCurrent()).thenReturn(true);
+        return view;
+    }
+}
@@ -1,29 +1,199 @@
+import org.apache.jackrabbit.util.ISO8601;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.metrics.MetricsService;
 import org.apache.sling.commons.scheduler.ScheduleOptions;
 import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @Component(
-        service = Runnable.class,
+        service = {Runnable.class, MoveContentScheduler.class},
         immediate = true
 )
+@Designate(ocd = MoveContentScheduler.Config.class)
 public class MoveContentScheduler implements Runnable {
 
+    @ObjectClassDefinition(name = "Move Content Scheduler")
+    public @interface Config {
+
+        @AttributeDefinition(
+                name = "Selection mode",
+                description = "traversal walks every node under the base path, query asks the index for archivable pages only, "
+                        + "ordered asks the index for them oldest first in bounded windows to drain a backlog")
+        String selection_mode() default SELECTION_MODE_TRAVERSAL;
+
+        @AttributeDefinition(
+                name = "Batch size",
+                description = "Number of moves saved per commit")
+        int batch_size() default ArchiveBatch.DEFAULT_BATCH_SIZE;
+
+        @AttributeDefinition(
+                name = "Parallelism",
+                description = "Number of workers processing top level subtrees in traversal mode; 1 walks the tree on the scheduler thread")
+        int parallelism() default 1;
+
+        @AttributeDefinition(
+                name = "Archive age in months",
+                description = "COMPLETED nodes created more than this many months ago are archived")
+        int archive_age_months() default 6;
+
+        @AttributeDefinition(
+                name = "Missing date policy",
+                description = "KEEP leaves COMPLETED nodes without jcr:created in place, ARCHIVE moves them (traversal mode only)")
+        ArchiveRule.MissingDatePolicy missing_date_policy() default ArchiveRule.MissingDatePolicy.KEEP;
+
+        @AttributeDefinition(
+                name = "Run mode",
+                description = "execute moves content, plan only writes the moves it would make to a plan under "
+                        + ArchivePlanWriter.PLANS_PATH + ", apply executes the plan configured below")
+        String run_mode() default RUN_MODE_EXECUTE;
+
+        @AttributeDefinition(
+                name = "Plan path",
+                description = "Path of the reviewed plan to execute in apply mode")
+        String plan_path() default "";
+
+        @AttributeDefinition(
+                name = "Distribution",
+                description = "local archives on this instance, cluster lets the leader queue one job per top level subtree "
+                        + "on the topic of its partition, which the cluster members process as assigned by the topology")
+        String distribution() default DISTRIBUTION_LOCAL;
+
+        @AttributeDefinition(
+                name = "Partitions",
+                description = "Number of partitions the top level subtrees are spread over in cluster distribution; "
+                        + "should not be lower than the number of cluster members")
+        int partitions() default 16;
+
+        @AttributeDefinition(
+                name = "Ordered window size",
+                description = "Number of candidates fetched per query in ordered selection mode")
+        int ordered_window_size() default 500;
+
+        @AttributeDefinition(
+                name = "Target save latency",
+                description = "Save latency in milliseconds above which a run shrinks its batches and pauses between them, "
+                        + "and below half of which it speeds up again up to the configured batch size; 0 disables throttling")
+        long target_save_latency_ms() default 0;
+
+        @AttributeDefinition(
+                name = "Maximum pause",
+                description = "Longest pause in milliseconds inserted after a save while throttled")
+        long max_pause_ms() default 5000;
+
+        @AttributeDefinition(
+                name = "Lease duration",
+                description = "Minutes the cluster-wide run lease stays valid without renewal, after which another instance may take it over")
+        int lease_duration_minutes() default 30;
+
+        @AttributeDefinition(
+                name = "Skip unchanged folders",
+                description = "Keeps a fingerprint per folder and skips folders in traversal mode whose children did not change "
+                        + "and in which no node has become due since the last run")
+        boolean skip_unchanged_folders() default true;
+
+        @AttributeDefinition(
+                name = "Flush node threshold",
+                description = "Estimated number of nodes touched by the pending changes at which a batch is saved early, "
+                        + "however few moves it holds; 0 disables the memory guard")
+        long flush_pending_nodes() default 50000;
+
+        @AttributeDefinition(
+                name = "Oversize node threshold",
+                description = "Estimated number of nodes of a single move or delete above which the node is left in place "
+                        + "and reported in the run summary instead of being staged")
+        long abort_pending_nodes() default 500000;
+
+        @AttributeDefinition(
+                name = "Flush heap percentage",
+                description = "Share of the tenured heap still used after the last garbage collection at which a batch is saved early; "
+                        + "0 disables the heap check")
+        int flush_heap_percent() default 80;
+
+        @AttributeDefinition(
+                name = "Maximum run duration",
+                description = "Minutes after which a run commits, records where it stopped and yields to the next trigger; 0 is unbounded")
+        long max_run_minutes() default 0;
+
+        @AttributeDefinition(
+                name = "Maximum nodes scanned",
+                description = "Number of evaluated nodes after which a run yields to the next trigger; 0 is unbounded")
+        long max_nodes_scanned() default 0;
+
+        @AttributeDefinition(
+                name = "Maximum moves",
+                description = "Number of moves after which a run yields to the next trigger; 0 is unbounded")
+        long max_moves() default 0;
+
+        @AttributeDefinition(
+                name = "Skip log sample rate",
+                description = "Every how many skipped nodes of the same reason one is logged at debug level; the run summary "
+                        + "counts all of them, and the changes made are written to the archive audit journal")
+        int skip_log_sample_rate() default 1000;
+    }
+
+    static final String SELECTION_MODE_TRAVERSAL = "traversal";
+    static final String SELECTION_MODE_QUERY = "query";
+    static final String SELECTION_MODE_ORDERED = "ordered";
+
+    static final String RUN_MODE_EXECUTE = "execute";
+    static final String RUN_MODE_PLAN = "plan";
+    static final String RUN_MODE_APPLY = "apply";
+
+    static final String DISTRIBUTION_LOCAL = "local";
+    static final String DISTRIBUTION_CLUSTER = "cluster";
+
+    static final String BASE_PATH = "/content/site/us/en";
+    static final String TARGET_PATH = "/content/projects";
+    static final String ITRANSLATE_PATH = "/content/dam/projects/itranslate";
+
+    /** Lucene index shipped in the content package for the archive properties. */
+    static final String ARCHIVE_INDEX_PATH = ArchiveIndex.PATH;
+
+    /** Progress of an interrupted traversal walk, see {@link ArchiveCursor}. */
+    static final String CURSOR_PATH = ArchiveCursor.VAR_ROOT + "/scheduler/cursor";
+
+    /** Cluster-wide lease of the scheduler runs, see {@link ArchiveLease}. */
+    static final String LEASE_PATH = ArchiveCursor.VAR_ROOT + "/scheduler/lease";
+
+    /** Folder fingerprints of the traversal walk, see {@link ArchiveFingerprintStore}. */
+    static final String FINGERPRINTS_PATH = ArchiveCursor.VAR_ROOT + "/scheduler/fingerprints";
+
+    private static final String SERVICE_USER = "playserviceuser";
+
     private static final Logger LOG = LoggerFactory.getLogger(MoveContentScheduler.class);
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
 
@@ -33,22 +203,63 @@ public class MoveContentScheduler implements Runnable {
     @Reference
     private Scheduler scheduler;
 
+    @Reference
+    private JobManager jobManager;
+
+    @Reference
+    private MetricsService metricsService;
+
+    @Reference
+    private SlingSettingsService slingSettingsService;
+
+    @Reference
+    private ArchiveAuditJournal journal;
+
+    private String selectionMode = SELECTION_MODE_TRAVERSAL;
+    private int batchSize = ArchiveBatch.DEFAULT_BATCH_SIZE;
+    private int parallelism = 1;
+    private int archiveAgeMonths = 6;
+    private ArchiveRule.MissingDatePolicy missingDatePolicy = ArchiveRule.MissingDatePolicy.KEEP;
+    private String runMode = RUN_MODE_EXECUTE;
+    private String planPath = "";
+    private String distribution = DISTRIBUTION_LOCAL;
+    private int partitions = 16;
+    private int orderedWindowSize = 500;
+    private ArchiveThrottle throttle;
+    private ArchiveMemoryGuard memoryGuard;
+    private ArchiveRunGuard runGuard;
+    private boolean skipUnchangedFolders = true;
+    private long maxRunMillis;
+    private long maxNodesScanned;
+    private long maxMoves;
+    private int skipLogSampleRate = 1000;
+    private ArchiveMetrics metrics;
+    private ServiceRegistration<DynamicMBean> metricsRegistration;
+
+    /**
+     * Runs the archive unless another instance holds the lease; a trigger that arrives while a run is in
+     * progress on this instance results in one follow-up run.
+     */
     @Override
     public void run() {
-        final String basePath = "/content/site/us/en";
-        final String targetPath = "/content/projects";
-        final String itranslatePath = "/content/dam/projects/itranslate";
+        runGuard.run(this::archive);
+    }
+
+    private void archive() {
+        final String basePath = BASE_PATH;
+        final String targetPath = TARGET_PATH;
+        final String itranslatePath = ITRANSLATE_PATH;
 
-        final Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.MONTH, -6);
-        final Date targetDate = calendar.getTime();
+        final long runStart = System.nanoTime();
+        final Date targetDate = ArchiveRule.monthsAgo(archiveAgeMonths);
         final String formattedTargetDate = DATE_FORMAT.format(targetDate);
+        final ArchiveRule rule = compileRule(targetDate);
 
         LOG.info("Current date: {}", DATE_FORMAT.format(new Date()));
-        LOG.info("Target date (6 months ago): {}", formattedTargetDate);
+        LOG.info("Target date ({} months ago): {}", archiveAgeMonths, formattedTargetDate);
 
         final Map<String, Object> param = new HashMap<>();
-        param.put(ResourceResolverFactory.SUBSERVICE, "playserviceuser");
+        param.put(ResourceResolverFactory.SUBSERVICE, SERVICE_USER);
 
         try (final ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
             final Session session = resolver.adaptTo(Session.class);
@@ -57,15 +268,67 @@ public class MoveContentScheduler implements Runnable {
                 return;
             }
 
+            if (RUN_MODE_APPLY.equals(runMode)) {
+                applyPlan(resolver, session);
+                return;
+            }
+
             final Resource baseResource = resolver.getResource(basePath);
 
-            if (baseResource != null) {
+            if (isQueryDriven() && !ArchiveIndex.isReady(resolver)) {
+                LOG.warn("Index {} is missing, disabled or still reindexing, skipping {} mode run", ARCHIVE_INDEX_PATH, selectionMode);
+                return;
+            }
+
+            if (baseResource != null && RUN_MODE_PLAN.equals(runMode)) {
+                writePlan(baseResource, resolver, session, targetPath, itranslatePath, rule);
+            } else if (baseResource != null && DISTRIBUTION_CLUSTER.equals(distribution)) {
+                queuePartitionJobs(baseResource, targetDate);
+            } else if (baseResource != null && parallelism > 1 && !isQueryDriven()) {
+                final ArchiveRunReport report = movePagesAndNodesInParallel(baseResource, targetPath, itranslatePath, rule);
+                metrics.runFinished(System.nanoTime() - runStart, report.isSuccessful());
+                LOG.info("Parallel archive run summary: {}", report);
+            } else if (baseResource != null) {
+                final ArchiveBatch batch = newBatch(session);
+                final ArchiveRunBudget budget = newBudget();
+                boolean completed = false;
                 try {
-                    movePagesAndNodes(baseResource, resolver, session, targetPath, itranslatePath, targetDate);
-                    session.save();
-                    LOG.info("Content moved successfully from {} to {}", basePath, targetPath);
+                    boolean yielded = false;
+                    try {
+                        if (SELECTION_MODE_QUERY.equals(selectionMode)) {
+                            movePagesAndNodesFromQuery(baseResource, resolver, batch, budget, targetPath, itranslatePath, rule);
+                        } else if (SELECTION_MODE_ORDERED.equals(selectionMode)) {
+                            movePagesAndNodesOldestFirst(baseResource, resolver, batch, budget, targetPath, itranslatePath, rule);
+                        } else {
+                            final ArchiveCursor cursor = ArchiveCursor.load(resolver, CURSOR_PATH);
+                            final Date walkTargetDate = cursor.isResuming() ? cursor.getCutoffDate() : targetDate;
+                            if (cursor.isResuming()) {
+                                LOG.info("Resuming walk after {} (batch {}, target date {})", cursor.getLastCompletedPath(),
+                                        cursor.getBatchNumber(), DATE_FORMAT.format(walkTargetDate));
+                            }
+                            cursor.start(walkTargetDate);
+                            movePagesAndNodes(baseResource, resolver, batch, cursor, fingerprintStore(resolver), budget,
+                                    targetPath, itranslatePath, compileRule(walkTargetDate));
+                            cursor.reset();
+                        }
+                    } catch (ArchiveRunBudget.ExhaustedException e) {
+                        // the cursor keeps the last completed subtree, the next trigger continues after it
+                        yielded = true;
+                        LOG.info("Run budget reached ({}), yielding to the next trigger", e.getMessage());
+                    }
+                    batch.commit();
+                    completed = true;
+                    if (!yielded) {
+                        LOG.info("Content moved successfully from {} to {}", basePath, targetPath);
+                    }
                 } catch (RepositoryException e) {
                     LOG.error("Error moving content: {}", e.getMessage());
+                } catch (PersistenceException e) {
+                    LOG.error("Error updating archive cursor: {}", e.getMessage());
+                } finally {
+                    metrics.record(batch);
+                    metrics.runFinished(System.nanoTime() - runStart, completed && batch.getBatchesFailed() == 0);
+                    LOG.info("Archive run summary: {}", batch.summary());
                 }
             } else {
                 LOG.warn("No resource found at {}", basePath);
@@ -76,177 +339,773 @@ public class MoveContentScheduler implements Runnable {
         }
     }
 
-    private void movePagesAndNodes(final Resource resource, final ResourceResolver resolver, final Session session,
-                                   final String targetPath, final String itranslatePath, final Date targetDate) throws RepositoryException {
+    /**
+     * Evaluates the tree as an execute run would, but records the deletes, folder creations and moves in a
+     * plan stored under /var instead of changing content. Always runs on the scheduler thread and without
+     * the resume cursor.
+     */
+    private void writePlan(final Resource baseResource, final ResourceResolver resolver, final Session session,
+                           final String targetPath, final String itranslatePath, final ArchiveRule rule) {
+        ArchivePlanWriter plan = null;
+        try {
+            plan = new ArchivePlanWriter();
+            final ArchiveBatch batch = new ArchiveBatch(session, batchSize, plan);
+            if (SELECTION_MODE_QUERY.equals(selectionMode)) {
+                movePagesAndNodesFromQuery(baseResource, resolver, batch, null, targetPath, itranslatePath, rule);
+            } else if (SELECTION_MODE_ORDERED.equals(selectionMode)) {
+                movePagesAndNodesOldestFirst(baseResource, resolver, batch, null, targetPath, itranslatePath, rule);
+            } else {
+                movePagesAndNodes(baseResource, resolver, batch, null, null, null, targetPath, itranslatePath, rule);
+            }
+            final String storedPlanPath = plan.store(session);
+            LOG.info("Wrote archive plan with {} steps to {}", plan.getSteps(), storedPlanPath);
+        } catch (IOException | RepositoryException e) {
+            LOG.error("Error writing archive plan: {}", e.getMessage());
+        } finally {
+            if (plan != null) {
+                plan.discard();
+            }
+        }
+    }
+
+    private void applyPlan(final ResourceResolver resolver, final Session session) {
+        if (planPath.isEmpty()) {
+            LOG.warn("No plan path configured, nothing to apply");
+            return;
+        }
+        final long runStart = System.nanoTime();
+        final ArchiveBatch batch = newBatch(session);
+        try {
+            if (new ArchivePlanExecutor(resolver, batch).apply(planPath)) {
+                metrics.record(batch);
+                metrics.runFinished(System.nanoTime() - runStart, batch.getBatchesFailed() == 0);
+                LOG.info("Archive run summary: {}", batch.summary());
+            }
+        } catch (IOException | RepositoryException e) {
+            LOG.error("Error applying archive plan {}: {}", planPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Walks the children of the base resource in name order, skipping those an interrupted run already completed,
+     * and records each completed child in the cursor. Because the walk is ordered by name, a resumed walk skips
+     * exactly the children whose path sorts at or before the last completed one, whether or not that child still
+     * exists or children were added or reordered in between. The cursor may be null to walk without resuming,
+     * the fingerprints may be null to evaluate every folder and the budget may be null for an unbounded walk.
+     * The budget is checked between children and inside their subtrees, see {@link #summarizeFolder}. The cursor
+     * only records completed children, so a child the budget interrupted is walked again by the next run; the
+     * parts of it that were moved before the interruption are gone by then, and unchanged folders are not
+     * evaluated again.
+     */
+    private void movePagesAndNodes(final Resource resource, final ResourceResolver resolver, final ArchiveBatch batch,
+                                   final ArchiveCursor cursor, final ArchiveFingerprintStore fingerprints,
+                                   final ArchiveRunBudget budget, final String targetPath, final String itranslatePath,
+                                   final ArchiveRule rule) throws RepositoryException, PersistenceException {
+        final String resumeAfter = cursor != null ? cursor.getLastCompletedPath() : null;
+        // only the names of this level are held, the children are resolved one at a time
+        final List<String> names = new ArrayList<>();
         for (final Resource child : resource.getChildren()) {
+            names.add(child.getName());
+        }
+        Collections.sort(names);
+
+        for (final String name : names) {
+            final String childPath = resource.getPath() + "/" + name;
+            if (resumeAfter != null && childPath.compareTo(resumeAfter) <= 0) {
+                continue;
+            }
+            final Resource child = resource.getChild(name);
+            if (child == null) {
+                // moved or deleted since the names were listed
+                continue;
+            }
+            if (budget != null) {
+                budget.check(batch);
+            }
             final Resource contentResource = child.getChild("jcr:content");
             if (contentResource != null) {
-                moveNodeIfOlder(child, resolver, session, targetPath, itranslatePath, targetDate);
+                if (budget != null) {
+                    budget.scanned();
+                }
+                moveNodeIfOlder(child, resolver, batch, targetPath, itranslatePath, rule);
+            } else {
+                moveFolderIfNeeded(child, resolver, batch, fingerprints, budget, targetPath, itranslatePath, rule);
+            }
+            if (cursor != null) {
+                cursor.markCompleted(child.getPath(), batch.getBatchesCommitted());
+            }
+        }
+    }
+
+    /**
+     * Parallel counterpart of {@link #movePagesAndNodes}. Every child of the base resource is an independent
+     * subtree that is processed on a work-stealing pool by a worker with its own service resolver and batch.
+     * Subtrees do not share target paths; a conflicting save (e.g. two workers deleting the same itranslate
+     * folder) only discards that worker's batch, which the next run picks up again. The cursor is not used.
+     */
+    private ArchiveRunReport movePagesAndNodesInParallel(final Resource baseResource, final String targetPath,
+                                                         final String itranslatePath, final ArchiveRule rule) {
+        final ArchiveRunReport report = new ArchiveRunReport();
+        final List<String> subtreePaths = new ArrayList<>();
+        for (final Resource child : baseResource.getChildren()) {
+            subtreePaths.add(child.getPath());
+        }
+        LOG.info("Processing {} subtrees with {} workers", subtreePaths.size(), parallelism);
+
+        final ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+        try {
+            final Map<String, Future<ArchiveBatch>> results = new LinkedHashMap<>();
+            for (final String subtreePath : subtreePaths) {
+                results.put(subtreePath, pool.submit(() -> moveSubtree(subtreePath, targetPath, itranslatePath, rule)));
+            }
+            for (final Map.Entry<String, Future<ArchiveBatch>> result : results.entrySet()) {
+                try {
+                    report.add(result.getValue().get());
+                } catch (ExecutionException e) {
+                    report.addFailure();
+                    LOG.error("Error moving content under {}: {}", result.getKey(), e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for archive workers");
+        } finally {
+            pool.shutdownNow();
+        }
+        return report;
+    }
+
+    /**
+     * Cluster counterpart of {@link #movePagesAndNodesInParallel}. Queues one job per top level subtree on the
+     * topic of its partition, which only the cluster member assigned to that partition by
+     * {@link ArchivePartitionCoordinator} processes. Subtrees that still have a queued or active job from an
+     * earlier run are not queued again.
+     */
+    private void queuePartitionJobs(final Resource baseResource, final Date targetDate) {
+        final Calendar cutoff = Calendar.getInstance();
+        cutoff.setTime(targetDate);
+        int queued = 0;
+        int pending = 0;
+        for (final Resource child : baseResource.getChildren()) {
+            final String topic = ArchivePartitionCoordinator.topic(ArchivePartitionCoordinator.partitionOf(child.getName(), partitions));
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put(ArchivePartitionCoordinator.PROPERTY_SUBTREE_PATH, child.getPath());
+            if (!jobManager.findJobs(JobManager.QueryType.ALL, topic, 1, properties).isEmpty()) {
+                pending++;
+                continue;
+            }
+            properties.put(ArchivePartitionCoordinator.PROPERTY_TARGET_DATE, cutoff);
+            if (jobManager.addJob(topic, properties) != null) {
+                queued++;
             } else {
-                moveFolderIfNeeded(child, resolver, session, targetPath, itranslatePath, targetDate);
+                LOG.error("Could not queue archive job for {}", child.getPath());
             }
         }
+        LOG.info("Queued {} subtree jobs over {} partitions, {} still pending from earlier runs", queued, partitions, pending);
     }
 
-    private void moveFolderIfNeeded(final Resource folder, final ResourceResolver resolver, final Session session,
-                                    final String targetPath, final String itranslatePath, final Date targetDate) throws RepositoryException {
-        final String folderPath = folder.getPath();
-        final String folderName = folder.getName();
-        boolean allNodesOlder = true;
-        boolean hasOldNodes = false;
-        final List<String> oldNodePaths = new ArrayList<>();
+    /**
+     * Archives one top level subtree for the given cutoff on the calling thread, see {@link ArchivePartitionCoordinator}.
+     */
+    ArchiveBatch archiveSubtree(final String subtreePath, final Date targetDate) throws LoginException, RepositoryException {
+        return moveSubtree(subtreePath, TARGET_PATH, ITRANSLATE_PATH, compileRule(targetDate));
+    }
 
-        for (final Resource node : folder.getChildren()) {
-            final ValueMap prop = node.getValueMap();
-            final String aemProjectStatus = prop.get("aemProjectStatus", String.class);
-            LOG.info("aemProjectStatus: {}", aemProjectStatus);
+    int getPartitions() {
+        return partitions;
+    }
 
-            if ("COMPLETED".equals(aemProjectStatus)) {
-                final ValueMap properties = node.getValueMap();
-                final Calendar createdDate = properties.get("jcr:created", Calendar.class);
+    private ArchiveBatch moveSubtree(final String subtreePath, final String targetPath, final String itranslatePath,
+                                     final ArchiveRule rule) throws LoginException, RepositoryException {
+        final Map<String, Object> param = new HashMap<>();
+        param.put(ResourceResolverFactory.SUBSERVICE, SERVICE_USER);
 
-                if (createdDate != null) {
-                    try {
-                        final Date newsPublishDate = createdDate.getTime();
-                        if (newsPublishDate.before(targetDate)) {
-                            hasOldNodes = true;
-                            oldNodePaths.add(node.getPath());
-                        } else {
-                            allNodesOlder = false;
+        try (final ResourceResolver resolver = resourceResolverFactory.getServiceResourceResolver(param)) {
+            final Session session = resolver.adaptTo(Session.class);
+            if (session == null) {
+                throw new RepositoryException("Could not adapt ResourceResolver to Session");
+            }
+            final ArchiveBatch batch = newBatch(session);
+            final Resource subtree = resolver.getResource(subtreePath);
+            if (subtree != null) {
+                if (subtree.getChild("jcr:content") != null) {
+                    moveNodeIfOlder(subtree, resolver, batch, targetPath, itranslatePath, rule);
+                } else {
+                    moveFolderIfNeeded(subtree, resolver, batch, fingerprintStore(resolver), null, targetPath, itranslatePath, rule);
+                }
+            }
+            batch.commit();
+            metrics.record(batch);
+            return batch;
+        }
+    }
+
+    /**
+     * Query-driven counterpart of {@link #movePagesAndNodes}. Instead of walking the whole tree it asks the
+     * index for the COMPLETED nodes created before the target date, then runs the existing per-node and
+     * per-folder move logic only for those nodes and the folders that contain them. A run the budget stops
+     * leaves the remaining candidates to the next run's query.
+     */
+    private void movePagesAndNodesFromQuery(final Resource baseResource, final ResourceResolver resolver, final ArchiveBatch batch,
+                                            final ArchiveRunBudget budget, final String targetPath, final String itranslatePath,
+                                            final ArchiveRule rule) throws RepositoryException {
+        final String basePath = baseResource.getPath();
+        final List<String> topLevelNodePaths = new ArrayList<>();
+        final SortedSet<String> candidateFolderPaths = new TreeSet<>();
+
+        // Collect first: the result iterator must not be consumed while the tree is being moved.
+        final Iterator<Resource> candidates = resolver.findResources(buildCandidateQuery(basePath, rule.getCutoff()), Query.JCR_SQL2);
+        while (candidates.hasNext()) {
+            final Resource candidate = candidates.next();
+            final Resource parent = candidate.getParent();
+            if (parent == null) {
+                continue;
+            }
+            if (basePath.equals(parent.getPath())) {
+                topLevelNodePaths.add(candidate.getPath());
+            } else {
+                candidateFolderPaths.add(parent.getPath());
+            }
+        }
+        LOG.info("Query found {} top level nodes and {} folders to evaluate under {}",
+                topLevelNodePaths.size(), candidateFolderPaths.size(), basePath);
+
+        for (final String nodePath : topLevelNodePaths) {
+            if (budget != null) {
+                budget.check(batch);
+            }
+            final Resource node = resolver.getResource(nodePath);
+            if (node != null) {
+                if (budget != null) {
+                    budget.scanned();
+                }
+                moveNodeIfOlder(node, resolver, batch, targetPath, itranslatePath, rule);
+            }
+        }
+
+        // Sorted order visits parents before their descendants, so a folder moved as a whole
+        // takes its nested candidates along and they are not evaluated again.
+        final List<String> movedFolderPaths = new ArrayList<>();
+        for (final String folderPath : candidateFolderPaths) {
+            if (isWithinAny(folderPath, movedFolderPaths)) {
+                continue;
+            }
+            if (budget != null) {
+                budget.check(batch);
+            }
+            if (archiveCandidateFolder(folderPath, basePath, resolver, batch, budget, targetPath, itranslatePath, rule)) {
+                movedFolderPaths.add(folderPath);
+            }
+        }
+    }
+
+    /**
+     * Ordered counterpart of {@link #movePagesAndNodesFromQuery} for draining a backlog. Fetches the candidates
+     * oldest first in windows of {@code ordered.window.size}, so a run that its budget stops has always archived
+     * the most overdue content, and never holds more than one window. Windows are paged by a keyset on the date
+     * and the path: each query starts at the date of the last candidate handled, and the candidates of that
+     * date already handled, which the index returns first because it orders by path within a date, are skipped.
+     * Moved candidates leave the base path and do not come back. A folder is evaluated as in query mode at its
+     * first candidate, and only once per run.
+     */
+    private void movePagesAndNodesOldestFirst(final Resource baseResource, final ResourceResolver resolver, final ArchiveBatch batch,
+                                              final ArchiveRunBudget budget, final String targetPath, final String itranslatePath,
+                                              final ArchiveRule rule) throws RepositoryException {
+        final String basePath = baseResource.getPath();
+        final QueryManager queryManager = batch.getSession().getWorkspace().getQueryManager();
+        final Set<String> evaluatedFolderPaths = new HashSet<>();
+        final Set<String> handledAtLastDate = new HashSet<>();
+        Calendar lastDate = null;
+        int windows = 0;
+
+        while (true) {
+            final Query query = queryManager.createQuery(buildOrderedCandidateQuery(basePath, rule.getCutoff(), lastDate), Query.JCR_SQL2);
+            final long limit = orderedWindowSize + handledAtLastDate.size();
+            query.setLimit(limit);
+
+            // Collect first: the result iterator must not be consumed while the tree is being moved.
+            final List<String> window = new ArrayList<>();
+            final List<Calendar> windowDates = new ArrayList<>();
+            long fetched = 0;
+            for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext(); ) {
+                final Node node = nodes.nextNode();
+                fetched++;
+                if (!handledAtLastDate.contains(node.getPath())) {
+                    window.add(node.getPath());
+                    windowDates.add(node.getProperty(rule.getDateProperty()).getDate());
+                }
+            }
+            windows++;
+
+            for (int i = 0; i < window.size(); i++) {
+                if (budget != null) {
+                    budget.check(batch);
+                }
+                final String candidatePath = window.get(i);
+                final Calendar date = windowDates.get(i);
+                if (lastDate == null || date.getTimeInMillis() != lastDate.getTimeInMillis()) {
+                    lastDate = date;
+                    handledAtLastDate.clear();
+                }
+                handledAtLastDate.add(candidatePath);
+
+                final Resource candidate = resolver.getResource(candidatePath);
+                final Resource parent = candidate != null ? candidate.getParent() : null;
+                if (parent == null) {
+                    // moved away together with its folder
+                    continue;
+                }
+                if (basePath.equals(parent.getPath())) {
+                    if (budget != null) {
+                        budget.scanned();
+                    }
+                    moveNodeIfOlder(candidate, resolver, batch, targetPath, itranslatePath, rule);
+                } else if (evaluatedFolderPaths.add(parent.getPath())) {
+                    archiveCandidateFolder(parent.getPath(), basePath, resolver, batch, budget, targetPath, itranslatePath, rule);
+                }
+            }
+
+            if (fetched < limit) {
+                break;
+            }
+        }
+        LOG.info("Drained candidates under {} oldest first in {} windows, last date {}", basePath, windows,
+                lastDate != null ? DATE_FORMAT.format(lastDate.getTime()) : "none");
+    }
+
+    /**
+     * Evaluates a folder that contains a query candidate on its own level and moves it as a whole, or its
+     * eligible nodes, to the mirrored path below the target path.
+     *
+     * @return true if the folder was moved as a whole
+     */
+    private boolean archiveCandidateFolder(final String folderPath, final String basePath, final ResourceResolver resolver,
+                                           final ArchiveBatch batch, final ArchiveRunBudget budget, final String targetPath,
+                                           final String itranslatePath, final ArchiveRule rule) throws RepositoryException {
+        final Resource folder = resolver.getResource(folderPath);
+        if (folder == null) {
+            return false;
+        }
+        final String relativeParentPath = folder.getParent().getPath().substring(basePath.length());
+        final String folderTargetPath = targetPath + relativeParentPath;
+        if (!relativeParentPath.isEmpty()) {
+            try {
+                batch.ensureFolder(resolver, folderTargetPath);
+            } catch (PersistenceException e) {
+                LOG.error("Failed to create folder at {}: {}", folderTargetPath, e.getMessage());
+                return false;
+            }
+        }
+        final ArchiveFolderSummary summary = summarizeFolder(folder, resolver, batch, null, budget, folderTargetPath,
+                itranslatePath, rule, false);
+        if (summary.isFullyEligible()) {
+            moveWholeFolder(summary, resolver, batch, null, folderTargetPath, itranslatePath);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the candidates are selected by the archive index instead of a walk
+     */
+    private boolean isQueryDriven() {
+        return SELECTION_MODE_QUERY.equals(selectionMode) || SELECTION_MODE_ORDERED.equals(selectionMode);
+    }
+
+    /**
+     * @return the budget of a run, which also stops the run when the lease is lost
+     */
+    private ArchiveRunBudget newBudget() {
+        return new ArchiveRunBudget(maxRunMillis, maxNodesScanned, maxMoves, runGuard::holdsLease);
+    }
+
+    /**
+     * @return a batch that follows the save latency throttle and the memory guard when they are configured
+     */
+    private ArchiveBatch newBatch(final Session session) {
+        return new ArchiveBatch(session, batchSize, throttle, memoryGuard, journal);
+    }
+
+    private ArchiveRule compileRule(final Date targetDate) {
+        return new ArchiveRule("aemProjectStatus", "COMPLETED", "jcr:created", targetDate, missingDatePolicy);
+    }
+
+    private String buildCandidateQuery(final String basePath, final Date targetDate) {
+        final Calendar cutoff = Calendar.getInstance();
+        cutoff.setTime(targetDate);
+        return "SELECT * FROM [nt:base] AS n"
+                + " WHERE ISDESCENDANTNODE(n, '" + basePath + "')"
+                + " AND n.[aemProjectStatus] = 'COMPLETED'"
+                + " AND n.[jcr:created] < CAST('" + ISO8601.format(cutoff) + "' AS DATE)";
+    }
+
+    /**
+     * @param fromDate  the date of the last candidate handled, or null for the first window
+     */
+    private String buildOrderedCandidateQuery(final String basePath, final Date targetDate, final Calendar fromDate) {
+        return buildCandidateQuery(basePath, targetDate)
+                + (fromDate != null ? " AND n.[jcr:created] >= CAST('" + ISO8601.format(fromDate) + "' AS DATE)" : "")
+                + " ORDER BY n.[jcr:created], n.[jcr:path]";
+    }
+
+    private static boolean isWithinAny(final String path, final List<String> ancestorPaths) {
+        for (final String ancestorPath : ancestorPaths) {
+            if (path.startsWith(ancestorPath + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the fingerprints of the walk, or null if unchanged folders are not skipped
+     */
+    private ArchiveFingerprintStore fingerprintStore(final ResourceResolver resolver) {
+        return skipUnchangedFolders ? new ArchiveFingerprintStore(resolver, FINGERPRINTS_PATH) : null;
+    }
+
+    /**
+     * Archives a folder below the base path. Moves it as a whole when its whole subtree is eligible,
+     * otherwise the parts of it that are, see {@link #summarizeFolder}.
+     */
+    private void moveFolderIfNeeded(final Resource folder, final ResourceResolver resolver, final ArchiveBatch batch,
+                                    final ArchiveFingerprintStore fingerprints, final ArchiveRunBudget budget,
+                                    final String targetPath, final String itranslatePath,
+                                    final ArchiveRule rule) throws RepositoryException {
+        final ArchiveFolderSummary summary = summarizeFolder(folder, resolver, batch, fingerprints, budget, targetPath,
+                itranslatePath, rule, true);
+        if (summary.isFullyEligible()) {
+            moveWholeFolder(summary, resolver, batch, fingerprints, targetPath, itranslatePath);
+        }
+    }
+
+    /**
+     * Evaluates a folder bottom up in a single pass: child folders are summarized first, then the folder's
+     * own nodes, so every node is read once no matter how deep it lies. A folder whose whole subtree is
+     * eligible is not moved here but reported to the caller, so that only its topmost eligible ancestor is
+     * moved. Otherwise the folder's eligible nodes and wholly eligible child folders are moved right away.
+     * <p>
+     * The folder's fingerprint is taken while listing its children. The nodes of the level are kept until the
+     * listing is done; if the fingerprint shows the folder unchanged, the outcome stored with it stands in for
+     * evaluating them again, so an unchanged folder still counts towards moving an ancestor as a whole.
+     * <p>
+     * The budget is checked before each child folder and every {@link ArchiveRunBudget#CHECK_INTERVAL} evaluated
+     * nodes. When it is used up, every level being walked moves the eligible nodes and wholly eligible child
+     * folders it has found so far before the walk unwinds, so a subtree too large for one run still shrinks
+     * from run to run instead of being evaluated again from scratch forever.
+     *
+     * @param targetPath  the path the folder itself would be moved below
+     * @param recurse     false to evaluate only the folder's own nodes; child folders then keep it from
+     *                    being moved as a whole
+     */
+    ArchiveFolderSummary summarizeFolder(final Resource folder, final ResourceResolver resolver, final ArchiveBatch batch,
+                                                 final ArchiveFingerprintStore fingerprints, final ArchiveRunBudget budget,
+                                                 final String targetPath, final String itranslatePath, final ArchiveRule rule,
+                                                 final boolean recurse) throws RepositoryException {
+        final ArchiveFolderSummary summary = new ArchiveFolderSummary(folder.getPath(), folder.getName());
+        final ArchiveFingerprintStore.Fingerprint fingerprint =
+                fingerprints != null ? new ArchiveFingerprintStore.Fingerprint(rule) : null;
+        final List<Resource> nodes = new ArrayList<>();
+        ArchiveFolderSummary own = new ArchiveFolderSummary(folder.getPath(), folder.getName());
+        boolean unchanged = false;
+
+        try {
+            for (final Resource child : folder.getChildren()) {
+                if (ArchiveFolderSummary.isFolder(child)) {
+                    if (fingerprint != null) {
+                        fingerprint.addFolder();
+                    }
+                    if (recurse) {
+                        if (budget != null) {
+                            budget.check(batch);
                         }
-                    } catch (Exception e) {
-                        LOG.error("Failed to parse jcr:created for resource {}", node.getPath());
+                        summary.addChild(summarizeFolder(child, resolver, batch, fingerprints, budget,
+                                targetPath + "/" + folder.getName(), itranslatePath, rule, true));
+                    } else {
+                        summary.block();
                     }
                 } else {
-                    LOG.warn("No jcr:created found for resource {}", node.getPath());
-                    allNodesOlder = false;
+                    if (fingerprint != null) {
+                        fingerprint.addNode(child);
+                    }
+                    nodes.add(child);
                 }
+            }
+
+            final ArchiveFingerprintStore.Fingerprint stored = fingerprint != null ? fingerprints.load(folder.getPath()) : null;
+            unchanged = fingerprint != null && fingerprint.isUnchangedSince(stored, rule);
+            if (unchanged) {
+                LOG.debug("Skipping the nodes of unchanged folder {}", folder.getPath());
+                own = stored.restore(folder.getPath(), folder.getName());
             } else {
-                LOG.info("Skipping node: {} (aemProjectStatus is not COMPLETED)", node.getPath());
+                for (final Resource node : nodes) {
+                    if (budget != null) {
+                        budget.scanned(batch);
+                    }
+                    evaluateNode(node, batch, own, rule);
+                }
+            }
+        } catch (ArchiveRunBudget.ExhaustedException e) {
+            // the folder is only partly evaluated: move what was found eligible so far, but neither the folder
+            // as a whole nor its fingerprint
+            summary.addNodes(own);
+            summary.block();
+            if (summary.hasMovesHere()) {
+                moveFolderContent(summary, resolver, batch, fingerprints, targetPath, itranslatePath);
             }
+            throw e;
         }
-//---
-        // Pre-move check under "/content/dam/projects/itranslate"
-        Resource itranslateFolderResource = resolver.getResource(itranslatePath + "/" + folderName);
-        if (itranslateFolderResource != null) {
-            // Delete the folder at "/content/dam/projects/itranslate"
+        summary.addNodes(own);
+
+        if (summary.isFullyEligible()) {
+            summary.compact();
+            return summary;
+        }
+        if (summary.hasMovesHere()) {
+            moveFolderContent(summary, resolver, batch, fingerprints, targetPath, itranslatePath);
+        }
+        if (fingerprint != null && !unchanged) {
+            fingerprint.record(own);
+            if (summary.hasMovesHere()) {
+                // the moves change the folder, its fingerprint is taken again by the next run
+                fingerprint.invalidate();
+            }
             try {
-                resolver.delete(itranslateFolderResource);
-                LOG.info("Deleted folder at {}", itranslatePath + "/" + folderName);
+                fingerprints.store(folder.getPath(), fingerprint);
             } catch (PersistenceException e) {
-                LOG.error("Failed to delete folder at {}: {}", itranslatePath + "/" + folderName, e.getMessage());
+                LOG.warn("Failed to update fingerprint of {}: {}", folder.getPath(), e.getMessage());
             }
         }
+        return summary;
+    }
+
+    private void evaluateNode(final Resource node, final ArchiveBatch batch, final ArchiveFolderSummary summary, final ArchiveRule rule) {
+        metrics.nodeScanned();
+        final ValueMap properties = node.getValueMap();
+        final ArchiveRule.Decision decision = rule.evaluate(properties);
+        final boolean dated = decision == ArchiveRule.Decision.ELIGIBLE || decision == ArchiveRule.Decision.NOT_DUE;
+        summary.add(node.getPath(), decision, dated ? rule.getDateMillis(properties) : -1);
+        switch (decision) {
+            case ELIGIBLE:
+                break;
+            case INVALID_DATE:
+                metrics.parseFailure();
+                skipped(batch, node.getPath(), decision, rule);
+                break;
+            default:
+                skipped(batch, node.getPath(), decision, rule);
+        }
+    }
 
-        //here we check if the folder already exists in the target path
-        Resource targetFolderResource = resolver.getResource(targetPath + "/" + folderName);
-        if (targetFolderResource != null) {
-            //here we check delete the folder at the target path before moving
+    /**
+     * Moves a folder whose whole subtree is eligible to the target path, replacing a folder of the same name
+     * there, see {@link ArchiveBatch#moveFolder}. Once the move is done, the folder of the same name under
+     * itranslate is queued for deletion.
+     */
+    private void moveWholeFolder(final ArchiveFolderSummary folder, final ResourceResolver resolver, final ArchiveBatch batch,
+                                 final ArchiveFingerprintStore fingerprints, final String targetPath,
+                                 final String itranslatePath) throws RepositoryException {
+        final String newFolderPath = targetPath + "/" + folder.name;
+        LOG.debug("Moving entire folder from {} to {} ({} eligible nodes)", folder.path, newFolderPath, folder.eligible);
+        if (!batch.moveFolder(resolver, folder.path, newFolderPath)) {
+            return;
+        }
+        queueCleanup(folder.name, resolver, batch, itranslatePath, "folder");
+        if (fingerprints != null) {
             try {
-                resolver.delete(targetFolderResource);
-                LOG.info("Deleted existing folder at {}", targetPath + "/" + folderName);
+                fingerprints.remove(folder.path);
             } catch (PersistenceException e) {
-                LOG.error("Failed to delete folder at {}: {}", targetPath + "/" + folderName, e.getMessage());
+                LOG.warn("Failed to remove fingerprints of {}: {}", folder.path, e.getMessage());
             }
         }
-//---
-        if (allNodesOlder && !oldNodePaths.isEmpty()) {
-            final String newFolderPath = targetPath + "/" + folderName;
-            LOG.info("Moving entire folder from {} to {}", folderPath, newFolderPath);
-            session.move(folderPath, newFolderPath);
-        } else if (hasOldNodes) {
-            final String targetFolderPath = targetPath + "/" + folderName;
-            targetFolderResource = resolver.getResource(targetFolderPath);
-
-            if (targetFolderResource == null) {
+    }
+
+    /**
+     * Moves the eligible nodes and the wholly eligible child folders of a folder that stays in place into the
+     * folder of the same name below the target path.
+     */
+    private void moveFolderContent(final ArchiveFolderSummary folder, final ResourceResolver resolver, final ArchiveBatch batch,
+                                   final ArchiveFingerprintStore fingerprints, final String targetPath,
+                                   final String itranslatePath) throws RepositoryException {
+        final String targetFolderPath = targetPath + "/" + folder.name;
+        if (!folder.eligibleNodePaths.isEmpty()) {
+            deleteConflicts(folder.name, resolver, batch, targetPath, itranslatePath, "folder");
+            if (!batch.exists(resolver, targetPath, folder.name)) {
                 try {
-                    resolver.create(resolver.getResource(targetPath), folderName, null);
-                    LOG.info("Created folder at {}", targetFolderPath);
+                    batch.create(resolver, targetPath, folder.name);
+                    LOG.debug("Created folder at {}", targetFolderPath);
                 } catch (PersistenceException e) {
                     LOG.error("Failed to create folder at {}: {}", targetFolderPath, e.getMessage());
                 }
             } else {
-                LOG.info("Folder already exists at {}, continuing to move old nodes", targetFolderPath);
+                LOG.debug("Folder already exists at {}, continuing to move old nodes", targetFolderPath);
             }
 
-            for (final String oldNodePath : oldNodePaths) {
+            for (final String oldNodePath : folder.eligibleNodePaths) {
                 final String newNodePath = targetFolderPath + "/" + oldNodePath.substring(oldNodePath.lastIndexOf("/") + 1);
-                LOG.info("Moving node from {} to {}", oldNodePath, newNodePath);
-                session.move(oldNodePath, newNodePath);
+                LOG.debug("Moving node from {} to {}", oldNodePath, newNodePath);
+                batch.move(oldNodePath, newNodePath);
             }
         }
 
-        for (final Resource childFolder : folder.getChildren()) {
-            if (childFolder.hasChildren()) {
-                moveFolderIfNeeded(childFolder, resolver, session, targetPath + "/" + folderName, itranslatePath, targetDate);
+        if (!folder.eligibleFolders.isEmpty()) {
+            try {
+                batch.ensureFolder(resolver, targetFolderPath);
+            } catch (PersistenceException e) {
+                LOG.error("Failed to create folder at {}: {}", targetFolderPath, e.getMessage());
+                return;
+            }
+            for (final ArchiveFolderSummary childFolder : folder.eligibleFolders) {
+                moveWholeFolder(childFolder, resolver, batch, fingerprints, targetFolderPath, itranslatePath);
             }
         }
     }
 
-    private void moveNodeIfOlder(final Resource node, final ResourceResolver resolver, final Session session,
-                                 final String targetPath, final String itranslatePath, final Date targetDate) throws RepositoryException {
-        final ValueMap prop = node.getValueMap();
-        final String aemProjectStatus = prop.get("aemProjectStatus", String.class);
-        LOG.info("aemProjectStatus: {}", aemProjectStatus);
+    /**
+     * Deletes the node of the given name below the target path, so the name is free for the move, and queues
+     * the one under itranslate for deletion.
+     *
+     * @return false if the node below the target path is too large to delete, in which case nothing was changed
+     */
+    private boolean deleteConflicts(final String name, final ResourceResolver resolver, final ArchiveBatch batch,
+                                    final String targetPath, final String itranslatePath, final String kind) {
+        //here we check if the node already exists in the target path and delete it before moving
+        final Resource targetResource = batch.exists(resolver, targetPath, name) ? resolver.getResource(targetPath + "/" + name) : null;
+        if (targetResource != null) {
+            try {
+                if (!batch.delete(resolver, targetResource)) {
+                    return false;
+                }
+                LOG.debug("Deleted existing {} at {}", kind, targetPath + "/" + name);
+            } catch (PersistenceException e) {
+                LOG.error("Failed to delete {} at {}: {}", kind, targetPath + "/" + name, e.getMessage());
+            }
+        }
+
+        queueCleanup(name, resolver, batch, itranslatePath, kind);
+        return true;
+    }
 
-        if ("COMPLETED".equals(aemProjectStatus)) {
-            final ValueMap properties = node.getValueMap();
-            final Calendar createdDate = properties.get("jcr:created", Calendar.class);
+    /**
+     * Queues the node of the given name under itranslate for deletion.
+     */
+    private void queueCleanup(final String name, final ResourceResolver resolver, final ArchiveBatch batch,
+                              final String itranslatePath, final String kind) {
+        // Pre-move check under "/content/dam/projects/itranslate"
+        if (batch.exists(resolver, itranslatePath, name)) {
+            try {
+                batch.deleteLater(resolver, itranslatePath + "/" + name);
+                LOG.debug("Queued {} at {} for deletion", kind, itranslatePath + "/" + name);
+            } catch (PersistenceException e) {
+                LOG.error("Failed to queue {} at {} for deletion: {}", kind, itranslatePath + "/" + name, e.getMessage());
+            }
+        }
+    }
 
-            if (createdDate != null) {
-                try {
-                    final Date newsPublishDate = createdDate.getTime();
-                    if (newsPublishDate.before(targetDate)) {
-                        final String currentPath = node.getPath();
+    private void moveNodeIfOlder(final Resource node, final ResourceResolver resolver, final ArchiveBatch batch,
+                                 final String targetPath, final String itranslatePath, final ArchiveRule rule) throws RepositoryException {
+        metrics.nodeScanned();
+        final ArchiveRule.Decision decision = rule.evaluate(node.getValueMap());
+        switch (decision) {
+            case ELIGIBLE:
+                final String currentPath = node.getPath();
 //---
-                        //here before moving we check under "/content/dam/projects/itranslate"
-                        Resource itranslateNodeResource = resolver.getResource(itranslatePath + "/" + node.getName());
-                        if (itranslateNodeResource != null) {
-                            try {
-                                resolver.delete(itranslateNodeResource);
-                                LOG.info("Deleted node at {}", itranslatePath + "/" + node.getName());
-                            } catch (PersistenceException e) {
-                                LOG.error("Failed to delete node at {}: {}", itranslatePath + "/" + node.getName(), e.getMessage());
-                            }
+                //here we check if the node already exists in the target path
+                Resource targetNodeResource = batch.exists(resolver, targetPath, node.getName())
+                        ? resolver.getResource(targetPath + "/" + node.getName()) : null;
+                if (targetNodeResource != null) {
+                    // Delete the existing node at the target path
+                    try {
+                        if (!batch.delete(resolver, targetNodeResource)) {
+                            // too large to delete, the node stays in place and is reported with the run
+                            break;
                         }
+                        LOG.debug("Deleted existing node at {}", targetPath + "/" + node.getName());
+                    } catch (PersistenceException e) {
+                        LOG.error("Failed to delete node at {}: {}", targetPath + "/" + node.getName(), e.getMessage());
+                    }
+                }
 
-                        //here we check if the node already exists in the target path
-                        Resource targetNodeResource = resolver.getResource(targetPath + "/" + node.getName());
-                        if (targetNodeResource != null) {
-                            // Delete the existing node at the target path
-                            try {
-                                resolver.delete(targetNodeResource);
-                                LOG.info("Deleted existing node at {}", targetPath + "/" + node.getName());
-                            } catch (PersistenceException e) {
-                                LOG.error("Failed to delete node at {}: {}", targetPath + "/" + node.getName(), e.getMessage());
-                            }
-                        }
-//---
-                        final String newPath = targetPath + "/" + node.getName();
-                        LOG.info("Moving node from {} to {}", currentPath, newPath);
-                        session.move(currentPath, newPath);
-                    } else {
-                        LOG.info("Skipping node: {} (newsPublishDate is newer than the target date)", node.getPath());
+                //here before moving we check under "/content/dam/projects/itranslate"
+                if (batch.exists(resolver, itranslatePath, node.getName())) {
+                    try {
+                        batch.deleteLater(resolver, itranslatePath + "/" + node.getName());
+                        LOG.debug("Queued node at {} for deletion", itranslatePath + "/" + node.getName());
+                    } catch (PersistenceException e) {
+                        LOG.error("Failed to queue node at {} for deletion: {}", itranslatePath + "/" + node.getName(), e.getMessage());
                     }
-                } catch (Exception e) {
-                    LOG.error("Failed to parse jcr:created for resource {}", node.getPath());
                 }
-            } else {
-                LOG.warn("No jcr:created found for resource {}", node.getPath());
-            }
-        } else {
-            LOG.info("Skipping node: {} (aemProjectStatus is not COMPLETED)", node.getPath());
+//---
+                final String newPath = targetPath + "/" + node.getName();
+                LOG.debug("Moving node from {} to {}", currentPath, newPath);
+                batch.move(currentPath, newPath);
+                break;
+            case INVALID_DATE:
+                metrics.parseFailure();
+                skipped(batch, node.getPath(), decision, rule);
+                break;
+            default:
+                skipped(batch, node.getPath(), decision, rule);
+        }
+    }
+
+    /**
+     * Counts a node left in place for the run summary and logs every {@code skip.log.sample.rate}th one per
+     * reason at debug level, starting with the first.
+     */
+    private void skipped(final ArchiveBatch batch, final String path, final ArchiveRule.Decision decision, final ArchiveRule rule) {
+        final int count = batch.skipped(decision);
+        if (LOG.isDebugEnabled() && (count - 1) % skipLogSampleRate == 0) {
+            LOG.debug("Skipping node: {} ({} on {}, {} so far)", path, decision, rule.getDateProperty(), count);
         }
     }
 
     @Activate
-    protected void activate() {
-        final ScheduleOptions options = scheduler.EXPR("0 0/2 * 1/1 * ? *");
+    protected void activate(final Config config, final BundleContext bundleContext) throws NotCompliantMBeanException {
+        metrics = new ArchiveMetrics(metricsService, "scheduler");
+        metricsRegistration = metrics.register(bundleContext);
+        selectionMode = config.selection_mode();
+        batchSize = config.batch_size();
+        parallelism = Math.max(1, config.parallelism());
+        archiveAgeMonths = config.archive_age_months();
+        missingDatePolicy = config.missing_date_policy();
+        runMode = config.run_mode();
+        planPath = config.plan_path();
+        distribution = config.distribution();
+        partitions = Math.max(1, config.partitions());
+        orderedWindowSize = Math.max(1, config.ordered_window_size());
+        throttle = config.target_save_latency_ms() > 0
+                ? new ArchiveThrottle(batchSize, config.target_save_latency_ms(), config.max_pause_ms())
+                : null;
+        skipUnchangedFolders = config.skip_unchanged_folders();
+        memoryGuard = config.flush_pending_nodes() > 0
+                ? new ArchiveMemoryGuard(config.flush_pending_nodes(), config.abort_pending_nodes(), config.flush_heap_percent())
+                : null;
+        maxRunMillis = TimeUnit.MINUTES.toMillis(Math.max(0, config.max_run_minutes()));
+        maxNodesScanned = config.max_nodes_scanned();
+        maxMoves = config.max_moves();
+        skipLogSampleRate = Math.max(1, config.skip_log_sample_rate());
+        runGuard = new ArchiveRunGuard(resourceResolverFactory, SERVICE_USER, LEASE_PATH,
+                slingSettingsService.getSlingId(), TimeUnit.MINUTES.toMillis(Math.max(1, config.lease_duration_minutes())));
+        LOG.info("Selection mode: {}, batch size: {}, parallelism: {}, distribution: {}", selectionMode, batchSize, parallelism, distribution);
+        final ScheduleOptions options = scheduler.EXPR("0 0/2 * 1/1 * ? *")
+                .name(this.getClass().getName())
+                .canRunConcurrently(false);
+        if (DISTRIBUTION_CLUSTER.equals(distribution)) {
+            // only the leader queues the partition jobs, all members process them
+            options.onLeaderOnly(true);
+        }
         scheduler.schedule(this, options);
     }
 
     @Deactivate
     protected void deactivate() {
         scheduler.unschedule(this.getClass().getName());
+        runGuard.close();
+        metricsRegistration.unregister();
+    }
+
+    ArchiveMetrics getMetrics() {
+        return metrics;
     }
 }